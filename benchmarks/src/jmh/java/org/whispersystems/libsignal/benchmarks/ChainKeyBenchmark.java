@@ -0,0 +1,73 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
+import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.ratchet.MessageKeys;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.Pair;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+/**
+ * A single chain step, deriving a message seed and the next chain key from one chain
+ * key, with the bare JCA HmacSHA256 {@link Mac} keyed once per seed or once for both,
+ * and through the ratchet classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChainKeyBenchmark {
+
+  private static final byte[] MESSAGE_KEY_SEED = {0x01};
+  private static final byte[] CHAIN_KEY_SEED   = {0x02};
+
+  private byte[]         key;
+  private ChainKey       chainKey;
+  private SenderChainKey senderChainKey;
+
+  @Setup
+  public void setUp() {
+    key            = new byte[32];
+
+    new SecureRandom().nextBytes(key);
+
+    chainKey       = new ChainKey(HKDF.createFor(3), key, 0);
+    senderChainKey = new SenderChainKey(0, key);
+  }
+
+  @Benchmark
+  public byte[] jcaStep() {
+    CryptoPrimitives.getHmacSha256(key).doFinal(MESSAGE_KEY_SEED);
+    return CryptoPrimitives.getHmacSha256(key).doFinal(CHAIN_KEY_SEED);
+  }
+
+  @Benchmark
+  public byte[] jcaSharedKeyStep(Blackhole blackhole) {
+    Mac mac = CryptoPrimitives.getHmacSha256(key);
+    blackhole.consume(mac.doFinal(MESSAGE_KEY_SEED));
+    return mac.doFinal(CHAIN_KEY_SEED);
+  }
+
+  @Benchmark
+  public Pair<SenderMessageKey, SenderChainKey> senderChainKeyStep() {
+    return senderChainKey.getSenderMessageKeyAndNext();
+  }
+
+  @Benchmark
+  public Pair<MessageKeys, ChainKey> chainKeyStep() {
+    return chainKey.getMessageKeysAndNextChainKey();
+  }
+}
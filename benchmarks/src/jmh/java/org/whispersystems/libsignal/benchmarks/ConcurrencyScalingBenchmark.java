@@ -0,0 +1,53 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate throughput of independent conversations and groups, on one thread and on one
+ * thread per core.  Each thread has its own session or sender key, so the ratio between
+ * the two scores shows how close to linear the scaling across distinct addresses and
+ * groups is.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConcurrencyScalingBenchmark {
+
+  @Benchmark
+  @Threads(1)
+  public byte[] sessionOneThread(SessionCipherBenchmark.Conversation conversation) throws Exception {
+    return exchange(conversation);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public byte[] sessionAllThreads(SessionCipherBenchmark.Conversation conversation) throws Exception {
+    return exchange(conversation);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] groupOneThread(GroupCipherBenchmark.Group group) throws Exception {
+    return exchange(group);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public byte[] groupAllThreads(GroupCipherBenchmark.Group group) throws Exception {
+    return exchange(group);
+  }
+
+  private static byte[] exchange(SessionCipherBenchmark.Conversation conversation) throws Exception {
+    SessionPair pair = conversation.pair;
+    return pair.bobCipher.decrypt(SessionPair.toSignalMessage(pair.aliceCipher.encrypt(conversation.plaintext)));
+  }
+
+  private static byte[] exchange(GroupCipherBenchmark.Group group) throws Exception {
+    return group.memberCipher.decrypt(group.senderCipher.encrypt(group.plaintext));
+  }
+}
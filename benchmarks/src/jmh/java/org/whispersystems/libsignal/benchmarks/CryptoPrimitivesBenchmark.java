@@ -0,0 +1,70 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The per-thread {@link Mac} and {@link Cipher} instances from {@link CryptoPrimitives},
+ * compared with looking up a new instance for every operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CryptoPrimitivesBenchmark {
+
+  private byte[]          key;
+  private SecretKeySpec   cipherKey;
+  private IvParameterSpec iv;
+  private byte[]          message;
+
+  @Setup
+  public void setUp() {
+    SecureRandom random = new SecureRandom();
+
+    key       = new byte[32];
+    message   = new byte[160];
+    cipherKey = new SecretKeySpec(key, "AES");
+    iv        = new IvParameterSpec(new byte[16]);
+
+    random.nextBytes(key);
+    random.nextBytes(message);
+  }
+
+  @Benchmark
+  public byte[] hmacGetInstance() throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(message);
+  }
+
+  @Benchmark
+  public byte[] hmacThreadLocal() {
+    return CryptoPrimitives.getHmacSha256(key).doFinal(message);
+  }
+
+  @Benchmark
+  public byte[] cipherGetInstance() throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, cipherKey, iv);
+    return cipher.doFinal(message);
+  }
+
+  @Benchmark
+  public byte[] cipherThreadLocal() throws Exception {
+    return CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, cipherKey, iv).doFinal(message);
+  }
+}
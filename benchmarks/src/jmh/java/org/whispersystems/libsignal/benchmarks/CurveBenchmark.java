@@ -0,0 +1,54 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.ecc.Curve25519CurveProvider;
+import org.whispersystems.libsignal.ecc.CurveProvider;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.XdhCurveProvider;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key generation and agreement with each {@link CurveProvider}.  Signatures are not
+ * measured, since every provider calculates them with curve25519-java.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CurveBenchmark {
+
+  @Param({"curve25519", "xdh"})
+  String provider;
+
+  private CurveProvider curveProvider;
+  private byte[]        publicKey;
+  private byte[]        privateKey;
+
+  @Setup
+  public void setUp() {
+    curveProvider = provider.equals("xdh") ? new XdhCurveProvider() : new Curve25519CurveProvider();
+
+    ECKeyPair ours   = curveProvider.generateKeyPair();
+    ECKeyPair theirs = curveProvider.generateKeyPair();
+
+    publicKey  = theirs.getPublicKey().getBytes();
+    privateKey = ours.getPrivateKey().getBytes();
+  }
+
+  @Benchmark
+  public ECKeyPair generateKeyPair() {
+    return curveProvider.generateKeyPair();
+  }
+
+  @Benchmark
+  public byte[] calculateAgreement() throws Exception {
+    return curveProvider.calculateAgreement(publicKey, privateKey);
+  }
+}
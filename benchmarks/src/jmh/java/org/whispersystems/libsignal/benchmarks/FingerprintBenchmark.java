@@ -0,0 +1,44 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.fingerprint.Fingerprint;
+import org.whispersystems.libsignal.fingerprint.NumericFingerprintGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link NumericFingerprintGenerator#createFor} at a range of iteration counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FingerprintBenchmark {
+
+  @Param({"1024", "5200"})
+  int iterations;
+
+  private NumericFingerprintGenerator generator;
+  private ECPublicKey                 localKey;
+  private ECPublicKey                 remoteKey;
+
+  @Setup
+  public void setUp() {
+    generator = new NumericFingerprintGenerator(iterations);
+    localKey  = Curve.generateKeyPair().getPublicKey();
+    remoteKey = Curve.generateKeyPair().getPublicKey();
+  }
+
+  @Benchmark
+  public Fingerprint createFor() {
+    return generator.createFor(1, "+14152222222".getBytes(), localKey, "+14153333333".getBytes(), remoteKey);
+  }
+}
@@ -0,0 +1,110 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GroupCipher} encryption by a sender, and decryption by a member that has
+ * processed the sender's distribution message, both in order and after skipping ahead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GroupCipherBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  @State(Scope.Thread)
+  public static class Group {
+    GroupCipher senderCipher;
+    GroupCipher memberCipher;
+    byte[]      plaintext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      SignalProtocolAddress  senderAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+      SenderKeyName          senderKeyName = new SenderKeyName("benchmark group", senderAddress);
+      InMemorySenderKeyStore senderStore   = new InMemorySenderKeyStore();
+      InMemorySenderKeyStore memberStore   = new InMemorySenderKeyStore();
+
+      SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(senderStore).create(senderKeyName);
+      new GroupSessionBuilder(memberStore).process(senderKeyName, new SenderKeyDistributionMessage(distributionMessage.serialize()));
+
+      senderCipher = new GroupCipher(senderStore, senderKeyName);
+      memberCipher = new GroupCipher(memberStore, senderKeyName);
+      plaintext    = new byte[160];
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class InOrder extends Group {
+    List<byte[]> messages;
+
+    @Setup(Level.Invocation)
+    public void encryptBatch() throws Exception {
+      messages = new ArrayList<>(BATCH_SIZE);
+
+      for (int i=0;i<BATCH_SIZE;i++) {
+        messages.add(senderCipher.encrypt(plaintext));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SkipAhead extends Group {
+    @Param({"10", "100", "1000", "2000"})
+    int gap;
+
+    byte[] message;
+
+    @Setup(Level.Invocation)
+    public void encryptGap() throws Exception {
+      for (int i=0;i<gap;i++) {
+        senderCipher.encrypt(plaintext);
+      }
+
+      message = senderCipher.encrypt(plaintext);
+    }
+  }
+
+  @Benchmark
+  public byte[] encrypt(Group group) throws Exception {
+    return group.senderCipher.encrypt(group.plaintext);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decrypt(InOrder state, Blackhole blackhole) throws Exception {
+    for (byte[] message : state.messages) {
+      blackhole.consume(state.memberCipher.decrypt(message));
+    }
+  }
+
+  /**
+   * Decrypts a message that arrives after a gap of lost messages, storing a message
+   * key for each of them.
+   */
+  @Benchmark
+  public byte[] decryptSkipAhead(SkipAhead state) throws Exception {
+    return state.memberCipher.decrypt(state.message);
+  }
+}
@@ -0,0 +1,55 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.kdf.HKDF;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HKDF#deriveSecrets(byte[], byte[], int)} at the output lengths the ratchet
+ * uses: 48 bytes for sender message keys, 64 for root keys, and 80 for message keys.
+ * 32 bytes, a single expand block, is included as a baseline.
+ * {@link #deriveSecretsIntoBuffer()} writes into a reused array instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HKDFBenchmark {
+
+  @Param({"32", "48", "64", "80"})
+  int outputLength;
+
+  private HKDF   hkdf;
+  private byte[] inputKeyMaterial;
+  private byte[] info;
+  private byte[] output;
+
+  @Setup
+  public void setUp() {
+    hkdf             = HKDF.createFor(3);
+    inputKeyMaterial = new byte[32];
+    info             = "WhisperMessageKeys".getBytes();
+    output           = new byte[outputLength];
+
+    new SecureRandom().nextBytes(inputKeyMaterial);
+  }
+
+  @Benchmark
+  public byte[] deriveSecrets() {
+    return hkdf.deriveSecrets(inputKeyMaterial, info, outputLength);
+  }
+
+  @Benchmark
+  public byte[] deriveSecretsIntoBuffer() {
+    hkdf.deriveSecrets(inputKeyMaterial, info, output, 0, outputLength);
+    return output;
+  }
+}
@@ -0,0 +1,38 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link SenderKeyStore} that, like a persistent one, hands out a freshly parsed
+ * copy of each record.
+ */
+class InMemorySenderKeyStore implements SenderKeyStore {
+
+  private final Map<SenderKeyName, byte[]> store = new HashMap<>();
+
+  @Override
+  public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+    store.put(senderKeyName, record.serialize());
+  }
+
+  @Override
+  public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+    try {
+      byte[] record = store.get(senderKeyName);
+
+      if (record == null) {
+        return new SenderKeyRecord();
+      } else {
+        return new SenderKeyRecord(record);
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
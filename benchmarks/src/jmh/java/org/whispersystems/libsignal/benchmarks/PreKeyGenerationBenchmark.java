@@ -0,0 +1,67 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+import org.whispersystems.libsignal.util.BulkPreKeyGenerator;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisioning 1000 one-time pre-keys into an in-memory store, serially with
+ * {@link KeyHelper#generatePreKeys(int, int)}, and with a {@link BulkPreKeyGenerator}
+ * using every core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreKeyGenerationBenchmark {
+
+  private static final int COUNT = 1000;
+
+  private ForkJoinPool        pool;
+  private BulkPreKeyGenerator generator;
+
+  @Setup
+  public void setUp() {
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    pool      = new ForkJoinPool(parallelism);
+    generator = new BulkPreKeyGenerator(pool, 50, parallelism * 2);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public InMemoryPreKeyStore serial() {
+    InMemoryPreKeyStore store = new InMemoryPreKeyStore();
+
+    for (PreKeyRecord record : KeyHelper.generatePreKeys(1, COUNT)) {
+      store.storePreKey(record.getId(), record);
+    }
+
+    return store;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public InMemoryPreKeyStore bulk() {
+    InMemoryPreKeyStore store = new InMemoryPreKeyStore();
+    generator.generate(store, 1, COUNT, null);
+    return store;
+  }
+}
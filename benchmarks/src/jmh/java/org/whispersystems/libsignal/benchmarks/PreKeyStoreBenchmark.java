@@ -0,0 +1,67 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading, and consuming then replacing, pre-keys in a store holding 100k of them, with
+ * {@link InMemoryPreKeyStore} and the serialized map it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreKeyStoreBenchmark {
+
+  private static final int COUNT = 100000;
+
+  @Param({"primitive", "serialized"})
+  String store;
+
+  private PreKeyStore    preKeyStore;
+  private PreKeyRecord[] records;
+  private int            next;
+
+  @Setup
+  public void setUp() {
+    ECKeyPair keyPair = KeyHelper.generatePreKeys(1, 1).get(0).getKeyPair();
+
+    preKeyStore = "primitive".equals(store) ? new InMemoryPreKeyStore() : new SerializedPreKeyStore();
+    records     = new PreKeyRecord[COUNT];
+
+    for (int i=0;i<COUNT;i++) {
+      records[i] = new PreKeyRecord(i + 1, keyPair);
+      preKeyStore.storePreKey(i + 1, records[i]);
+    }
+  }
+
+  @Benchmark
+  public PreKeyRecord load() throws Exception {
+    return preKeyStore.loadPreKey(nextId());
+  }
+
+  @Benchmark
+  public void consumeAndReplace() {
+    int id = nextId();
+
+    preKeyStore.removePreKey(id);
+    preKeyStore.storePreKey(id, records[id - 1]);
+  }
+
+  private int nextId() {
+    next = (next + 7919) % COUNT;
+    return next + 1;
+  }
+}
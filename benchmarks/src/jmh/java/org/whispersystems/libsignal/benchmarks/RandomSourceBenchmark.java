@@ -0,0 +1,48 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.util.RandomSource;
+import org.whispersystems.libsignal.util.SecureRandomSource;
+import org.whispersystems.libsignal.util.SeededRandomSource;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating a 32 byte sender key with each {@link RandomSource}, against a
+ * SHA1PRNG instance created for every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RandomSourceBenchmark {
+
+  private final RandomSource secure = new SecureRandomSource();
+  private final RandomSource seeded = new SeededRandomSource(42);
+
+  @Benchmark
+  public byte[] sha1PrngPerCall() throws Exception {
+    byte[] key = new byte[32];
+    SecureRandom.getInstance("SHA1PRNG").nextBytes(key);
+    return key;
+  }
+
+  @Benchmark
+  public byte[] secureRandomSource() {
+    byte[] key = new byte[32];
+    secure.nextBytes(key);
+    return key;
+  }
+
+  @Benchmark
+  public byte[] seededRandomSource() {
+    byte[] key = new byte[32];
+    seeded.nextBytes(key);
+    return key;
+  }
+}
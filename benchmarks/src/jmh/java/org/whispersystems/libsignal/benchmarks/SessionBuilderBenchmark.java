@@ -0,0 +1,78 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session setup: Alice processing Bob's {@link PreKeyBundle}, and Bob processing
+ * the {@link PreKeySignalMessage} that Alice sends with it.  Sessions are deleted
+ * between invocations so that every call starts from a fresh record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionBuilderBenchmark {
+
+  @State(Scope.Thread)
+  public static class Alice {
+    SessionPair    pair;
+    SessionBuilder builder;
+    PreKeyBundle   bundle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      pair    = new SessionPair();
+      builder = new SessionBuilder(pair.aliceStore, pair.bobAddress);
+      bundle  = pair.createBobBundle(true);
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteSession() {
+      pair.aliceStore.deleteSession(pair.bobAddress);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Bob {
+    SessionPair  pair;
+    PreKeyRecord preKey;
+    byte[]       message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      pair = new SessionPair();
+
+      new SessionBuilder(pair.aliceStore, pair.bobAddress).process(pair.createBobBundle(true));
+
+      preKey  = pair.bobStore.loadPreKey(SessionPair.PRE_KEY_ID);
+      message = pair.aliceCipher.encrypt(new byte[160]).serialize();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetSession() {
+      pair.bobStore.deleteSession(pair.aliceAddress);
+      pair.bobStore.storePreKey(SessionPair.PRE_KEY_ID, preKey);
+    }
+  }
+
+  @Benchmark
+  public void processPreKeyBundle(Alice alice) throws Exception {
+    alice.builder.process(alice.bundle);
+  }
+
+  @Benchmark
+  public byte[] processPreKeySignalMessage(Bob bob) throws Exception {
+    return bob.pair.bobCipher.decrypt(new PreKeySignalMessage(bob.message));
+  }
+}
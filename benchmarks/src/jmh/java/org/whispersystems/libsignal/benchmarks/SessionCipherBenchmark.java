@@ -0,0 +1,150 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.ecc.EphemeralKeyPool;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SessionCipher} on an established session: a steady sending chain, DH
+ * ratchet steps as the conversation changes direction, and windows of messages
+ * that arrive out of order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionCipherBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  @State(Scope.Thread)
+  public static class Conversation {
+    SessionPair pair;
+    byte[]      plaintext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      pair      = new SessionPair().establish();
+      plaintext = new byte[160];
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Pooled extends Conversation {
+    EphemeralKeyPool pool;
+
+    @Setup(Level.Trial)
+    public void installPool() {
+      pool = new EphemeralKeyPool(16);
+      EphemeralKeyPool.install(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void uninstallPool() {
+      EphemeralKeyPool.install(null);
+      pool.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class InOrder extends Conversation {
+    List<SignalMessage> messages;
+
+    @Setup(Level.Invocation)
+    public void encryptBatch() {
+      messages = new ArrayList<>(BATCH_SIZE);
+
+      for (int i=0;i<BATCH_SIZE;i++) {
+        messages.add(SessionPair.toSignalMessage(pair.aliceCipher.encrypt(plaintext)));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class OutOfOrder extends Conversation {
+    @Param({"10", "100", "1000"})
+    int window;
+
+    List<SignalMessage> messages;
+
+    @Setup(Level.Invocation)
+    public void encryptWindow() {
+      messages = new ArrayList<>(window);
+
+      for (int i=0;i<window;i++) {
+        messages.add(SessionPair.toSignalMessage(pair.aliceCipher.encrypt(plaintext)));
+      }
+
+      Collections.reverse(messages);
+    }
+  }
+
+  @Benchmark
+  public CiphertextMessage encrypt(Conversation conversation) {
+    return conversation.pair.aliceCipher.encrypt(conversation.plaintext);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decrypt(InOrder state, Blackhole blackhole) throws Exception {
+    for (SignalMessage message : state.messages) {
+      blackhole.consume(state.pair.bobCipher.decrypt(message));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public List<SessionCipher.DecryptionResult> decryptBatch(InOrder state) {
+    return state.pair.bobCipher.decryptBatch(state.messages);
+  }
+
+  /**
+   * Each message is a reply, so both decryptions perform a DH ratchet step.
+   */
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public byte[] ratchetStep(Conversation conversation) throws Exception {
+    SessionPair pair = conversation.pair;
+
+    pair.bobCipher.decrypt(SessionPair.toSignalMessage(pair.aliceCipher.encrypt(conversation.plaintext)));
+    return pair.aliceCipher.decrypt(SessionPair.toSignalMessage(pair.bobCipher.encrypt(conversation.plaintext)));
+  }
+
+  /**
+   * {@link #ratchetStep(Conversation)} with new ratchet keys taken from an
+   * {@link EphemeralKeyPool}.  Generation moves off the calling thread, so this only
+   * gains when there is an idle core for the pool to fill from.
+   */
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public byte[] ratchetStepPooled(Pooled conversation) throws Exception {
+    return ratchetStep(conversation);
+  }
+
+  /**
+   * Decrypts a whole window in reverse order, so the first message skips ahead over
+   * the others and each later one uses a stored message key.
+   */
+  @Benchmark
+  public void decryptOutOfOrder(OutOfOrder state, Blackhole blackhole) throws Exception {
+    for (SignalMessage message : state.messages) {
+      blackhole.consume(state.pair.bobCipher.decrypt(message));
+    }
+  }
+}
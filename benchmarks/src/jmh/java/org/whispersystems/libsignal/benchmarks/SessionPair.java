@@ -0,0 +1,87 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+
+/**
+ * Two parties with in-memory stores, and the helpers the benchmarks use to set
+ * up sessions between them.
+ */
+final class SessionPair {
+
+  static final int PRE_KEY_ID        = 31337;
+  static final int SIGNED_PRE_KEY_ID = 22;
+
+  final SignalProtocolStore   aliceStore;
+  final SignalProtocolStore   bobStore;
+  final SignalProtocolAddress aliceAddress;
+  final SignalProtocolAddress bobAddress;
+  final SessionCipher         aliceCipher;
+  final SessionCipher         bobCipher;
+
+  SessionPair() {
+    this.aliceStore   = new InMemorySignalProtocolStore(Curve.generateKeyPair());
+    this.bobStore     = new InMemorySignalProtocolStore(Curve.generateKeyPair());
+    this.aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    this.bobAddress   = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    this.aliceCipher  = new SessionCipher(aliceStore, bobAddress);
+    this.bobCipher    = new SessionCipher(bobStore, aliceAddress);
+  }
+
+  /**
+   * Publishes pre-keys for Bob and returns the bundle Alice would fetch.
+   *
+   * @param oneTimePreKey Whether the bundle includes an unsigned pre-key, which Bob
+   *                      consumes on first use.
+   */
+  PreKeyBundle createBobBundle(boolean oneTimePreKey) throws Exception {
+    ECKeyPair preKeyPair            = Curve.generateKeyPair();
+    ECKeyPair signedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    signedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                               signedPreKeyPair.getPublicKey().getBytes());
+
+    bobStore.storeSignedPreKey(SIGNED_PRE_KEY_ID, new SignedPreKeyRecord(SIGNED_PRE_KEY_ID, System.currentTimeMillis(),
+                                                                         signedPreKeyPair, signedPreKeySignature));
+
+    if (oneTimePreKey) {
+      bobStore.storePreKey(PRE_KEY_ID, new PreKeyRecord(PRE_KEY_ID, preKeyPair));
+    }
+
+    return new PreKeyBundle(oneTimePreKey ? PRE_KEY_ID : -1, oneTimePreKey ? preKeyPair.getPublicKey() : null,
+                            SIGNED_PRE_KEY_ID, signedPreKeyPair.getPublicKey(), signedPreKeySignature,
+                            bobStore.getIdentityKeyPair().getPublicKey());
+  }
+
+  /**
+   * Establishes a session in both directions, so that neither side is still sending
+   * {@link PreKeySignalMessage}s.
+   */
+  SessionPair establish() throws Exception {
+    new SessionBuilder(aliceStore, bobAddress).process(createBobBundle(true));
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt(new byte[1]).serialize()));
+    aliceCipher.decrypt(toSignalMessage(bobCipher.encrypt(new byte[1])));
+
+    return this;
+  }
+
+  static SignalMessage toSignalMessage(CiphertextMessage message) {
+    if (!(message instanceof SignalMessage)) {
+      throw new AssertionError("Unexpected message type: " + message.getType());
+    }
+
+    return (SignalMessage)message;
+  }
+}
@@ -0,0 +1,79 @@
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SessionRecord} serialization and parsing with different numbers of
+ * archived session states, up to the limit a record keeps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionRecordBenchmark {
+
+  @Param({"0", "10", "40"})
+  int archivedStates;
+
+  private SessionRecord record;
+  private byte[]        serialized;
+
+  @Setup
+  public void setUp() throws Exception {
+    SessionPair pair = new SessionPair();
+
+    for (int i=0;i<=archivedStates;i++) {
+      pair.establish();
+    }
+
+    record     = pair.aliceStore.loadSession(pair.bobAddress);
+    serialized = record.serialize();
+
+    if (record.getPreviousSessionStates().size() != archivedStates) {
+      throw new AssertionError("Expected " + archivedStates + " archived states!");
+    }
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return record.serialize();
+  }
+
+  @Benchmark
+  public SessionRecord parse() throws Exception {
+    return new SessionRecord(serialized);
+  }
+
+  /**
+   * The work a persistent store does for each message: parse, touch the current
+   * state, and serialize again.
+   */
+  @Benchmark
+  public byte[] parseAndSerialize() throws Exception {
+    SessionRecord parsed = new SessionRecord(serialized);
+    parsed.getSessionState().getSenderChainKey();
+    return parsed.serialize();
+  }
+
+  @Benchmark
+  public int parseAllStates() throws Exception {
+    SessionRecord parsed = new SessionRecord(serialized);
+    int           total  = parsed.getSessionState().getSessionVersion();
+
+    for (SessionState state : parsed.getPreviousSessionStates()) {
+      total += state.getSessionVersion();
+    }
+
+    return total;
+  }
+}
@@ -0,0 +1,197 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.state.BulkSessionStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Encrypts one message to many remote addresses at once, such as every device of
+ * every member of a group.
+ * <p>
+ * All of the sessions are locked and loaded up front, the message is encrypted to each
+ * of them on the supplied {@link Executor}, and the updated sessions are stored together
+ * at the end.  If the session store is a {@link BulkSessionStore}, loading and storing
+ * each take a single call.  A failure for one address does not affect the others, and
+ * is reported alongside the successful results.
+ */
+public class MultiRecipientEncryptor {
+
+  private final SessionStore sessionStore;
+  private final Executor     executor;
+
+  /**
+   * Construct a MultiRecipientEncryptor that encrypts on the calling thread.
+   *
+   * @param sessionStore The {@link SessionStore} that contains sessions for the recipients.
+   */
+  public MultiRecipientEncryptor(SessionStore sessionStore) {
+    this(sessionStore, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+  }
+
+  /**
+   * @param sessionStore The {@link SessionStore} that contains sessions for the recipients.
+   * @param executor The executor to encrypt on.  It must not run tasks that wait on session locks.
+   *                 Any task it rejects is run on the calling thread instead.
+   */
+  public MultiRecipientEncryptor(SessionStore sessionStore, Executor executor) {
+    this.sessionStore = sessionStore;
+    this.executor     = executor;
+  }
+
+  /**
+   * Encrypt a message to a set of remote addresses.
+   *
+   * @param remoteAddresses The recipient+device tuples to encrypt to.
+   * @param paddedMessage The plaintext message bytes, optionally padded to a constant multiple.
+   * @return the ciphertext for each address that was encrypted to, and the failure for each
+   *         address that was not.
+   */
+  public Result encrypt(Collection<SignalProtocolAddress> remoteAddresses, byte[] paddedMessage) {
+    Set<SignalProtocolAddress> addresses = new LinkedHashSet<>(remoteAddresses);
+    List<Lock>                 locks     = SessionCipher.getSessionLocks(addresses);
+    int                        locked    = 0;
+
+    try {
+      for (Lock lock : locks) {
+        lock.lock();
+        locked++;
+      }
+
+      return encryptLocked(addresses, paddedMessage);
+    } finally {
+      for (int i=locked-1;i>=0;i--) {
+        locks.get(i).unlock();
+      }
+    }
+  }
+
+  private Result encryptLocked(Set<SignalProtocolAddress> addresses, final byte[] paddedMessage) {
+    Map<SignalProtocolAddress, SessionRecord>                 records  = loadSessions(addresses);
+    Map<SignalProtocolAddress, FutureTask<CiphertextMessage>> tasks    = new LinkedHashMap<>();
+    Map<SignalProtocolAddress, CiphertextMessage>             messages = new LinkedHashMap<>();
+    Map<SignalProtocolAddress, Exception>                     failures = new LinkedHashMap<>();
+    Map<SignalProtocolAddress, SessionRecord>                 updated  = new LinkedHashMap<>();
+
+    for (final Map.Entry<SignalProtocolAddress, SessionRecord> entry : records.entrySet()) {
+      FutureTask<CiphertextMessage> task = new FutureTask<>(new Callable<CiphertextMessage>() {
+        @Override
+        public CiphertextMessage call() throws NoSessionException {
+          if (!entry.getValue().getSessionState().hasSenderChain()) {
+            throw new NoSessionException("No session for: " + entry.getKey());
+          }
+
+          return SessionCipher.encrypt(entry.getValue().getSessionState(), paddedMessage);
+        }
+      });
+
+      tasks.put(entry.getKey(), task);
+
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+
+    boolean interrupted = false;
+
+    for (Map.Entry<SignalProtocolAddress, FutureTask<CiphertextMessage>> entry : tasks.entrySet()) {
+      while (true) {
+        try {
+          messages.put(entry.getKey(), entry.getValue().get());
+          updated.put(entry.getKey(), records.get(entry.getKey()));
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Error) throw (Error)e.getCause();
+          failures.put(entry.getKey(), (Exception)e.getCause());
+          break;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    storeSessions(updated);
+
+    return new Result(messages, failures);
+  }
+
+  private Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    if (sessionStore instanceof BulkSessionStore) {
+      return ((BulkSessionStore)sessionStore).loadSessions(addresses);
+    }
+
+    Map<SignalProtocolAddress, SessionRecord> records = new LinkedHashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, sessionStore.loadSession(address));
+    }
+
+    return records;
+  }
+
+  private void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    if (records.isEmpty()) return;
+
+    if (sessionStore instanceof BulkSessionStore) {
+      ((BulkSessionStore)sessionStore).storeSessions(records);
+      return;
+    }
+
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : records.entrySet()) {
+      sessionStore.storeSession(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * The outcome of encrypting to a set of addresses.  Every address appears in
+   * exactly one of {@link #getMessages()} and {@link #getFailures()}.
+   */
+  public static class Result {
+    private final Map<SignalProtocolAddress, CiphertextMessage> messages;
+    private final Map<SignalProtocolAddress, Exception>         failures;
+
+    private Result(Map<SignalProtocolAddress, CiphertextMessage> messages,
+                   Map<SignalProtocolAddress, Exception> failures)
+    {
+      this.messages = Collections.unmodifiableMap(messages);
+      this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public Map<SignalProtocolAddress, CiphertextMessage> getMessages() {
+      return messages;
+    }
+
+    public Map<SignalProtocolAddress, Exception> getFailures() {
+      return failures;
+    }
+
+    public boolean hasFailures() {
+      return !failures.isEmpty();
+    }
+  }
+}
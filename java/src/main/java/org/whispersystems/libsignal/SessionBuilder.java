@@ -24,6 +24,8 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * SessionBuilder is responsible for setting up encrypted sessions.
  * Once a session has been established, {@link org.whispersystems.libsignal.SessionCipher}
@@ -148,7 +150,10 @@ public class SessionBuilder {
    *                             badly formatted.
    */
   public void process(PreKeyBundle preKey) throws InvalidKeyException {
-    synchronized (SessionCipher.SESSION_LOCK) {
+    Lock lock = SessionCipher.getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
       if (preKey.getSignedPreKey() != null &&
           !Curve.verifySignature(preKey.getIdentityKey(),
                                  preKey.getSignedPreKey().getBytes(),
@@ -162,7 +167,7 @@ public class SessionBuilder {
       }
 
       SessionRecord         sessionRecord        = sessionStore.loadSession(remoteAddress);
-      ECKeyPair             ourBaseKey           = Curve.generateKeyPair();
+      ECKeyPair             ourBaseKey           = Curve.generateEphemeralKeyPair();
       ECPublicKey           theirSignedPreKey    = preKey.getSignedPreKey();
       Optional<ECPublicKey> theirOneTimePreKey   = Optional.fromNullable(preKey.getPreKey());
       Optional<Integer>     theirOneTimePreKeyId = theirOneTimePreKey.isPresent() ? Optional.of(preKey.getPreKeyId()) :
@@ -185,6 +190,8 @@ public class SessionBuilder {
       sessionRecord.getSessionState().setAliceBaseKey(ourBaseKey.getPublicKey().getBytes());
 
       sessionStore.storeSession(remoteAddress, sessionRecord);
+    } finally {
+      lock.unlock();
     }
   }
 
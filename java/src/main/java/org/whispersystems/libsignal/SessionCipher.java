@@ -19,21 +19,28 @@ import org.whispersystems.libsignal.state.IdentityKeyStore;
 import org.whispersystems.libsignal.state.PreKeyStore;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SessionState.ReceiverChain;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.StripedLock;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -50,8 +57,16 @@ import static org.whispersystems.libsignal.state.SessionState.UnacknowledgedPreK
  */
 public class SessionCipher {
 
+  /**
+   * @deprecated Sessions are no longer serialized on a single global lock, so holding this
+   *             has no effect on concurrent encrypt/decrypt calls.  Use
+   *             {@link #getSessionLock(SignalProtocolAddress)} instead.
+   */
+  @Deprecated
   public static final Object SESSION_LOCK = new Object();
 
+  private static final StripedLock SESSION_LOCKS = new StripedLock(1024);
+
   private final SessionStore          sessionStore;
   private final IdentityKeyStore      identityKeyStore;
   private final SessionBuilder        sessionBuilder;
@@ -89,37 +104,52 @@ public class SessionCipher {
    * @return A ciphertext message encrypted to the recipient+device tuple.
    */
   public CiphertextMessage encrypt(byte[] paddedMessage) {
-    synchronized (SESSION_LOCK) {
-      SessionRecord sessionRecord   = sessionStore.loadSession(remoteAddress);
-      SessionState  sessionState    = sessionRecord.getSessionState();
-      ChainKey      chainKey        = sessionState.getSenderChainKey();
-      MessageKeys   messageKeys     = chainKey.getMessageKeys();
-      ECPublicKey   senderEphemeral = sessionState.getSenderRatchetKey();
-      int           previousCounter = sessionState.getPreviousCounter();
-      int           sessionVersion  = sessionState.getSessionVersion();
-
-      byte[]            ciphertextBody    = getCiphertext(messageKeys, paddedMessage);
-      CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
-                                                              senderEphemeral, chainKey.getIndex(),
-                                                              previousCounter, ciphertextBody,
-                                                              sessionState.getLocalIdentityKey(),
-                                                              sessionState.getRemoteIdentityKey());
-
-      if (sessionState.hasUnacknowledgedPreKeyMessage()) {
-        UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
-
-        ciphertextMessage = new PreKeySignalMessage(sessionVersion, items.getPreKeyId(),
-                                                    items.getSignedPreKeyId(), items.getBaseKey(),
-                                                    (SignalMessage) ciphertextMessage);
-      }
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
 
-      sessionState.setSenderChainKey(chainKey.getNextChainKey());
+    try {
+      SessionRecord     sessionRecord     = sessionStore.loadSession(remoteAddress);
+      CiphertextMessage ciphertextMessage = encrypt(sessionRecord.getSessionState(), paddedMessage);
 
       sessionStore.storeSession(remoteAddress, sessionRecord);
       return ciphertextMessage;
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Encrypts a message with a session state and advances its sending chain.  The caller
+   * is responsible for holding the session lock and storing the updated state.
+   */
+  static CiphertextMessage encrypt(SessionState sessionState, byte[] paddedMessage) {
+    ChainKey                    chainKey        = sessionState.getSenderChainKey();
+    Pair<MessageKeys, ChainKey> step            = chainKey.getMessageKeysAndNextChainKey();
+    MessageKeys                 messageKeys     = step.first();
+    ECPublicKey                 senderEphemeral = sessionState.getSenderRatchetKey();
+    int                         previousCounter = sessionState.getPreviousCounter();
+    int                         sessionVersion  = sessionState.getSessionVersion();
+
+    byte[]            ciphertextBody    = getCiphertext(messageKeys, paddedMessage);
+    CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
+                                                            senderEphemeral, chainKey.getIndex(),
+                                                            previousCounter, ciphertextBody,
+                                                            sessionState.getLocalIdentityKey(),
+                                                            sessionState.getRemoteIdentityKey());
+
+    if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+      UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
+
+      ciphertextMessage = new PreKeySignalMessage(sessionVersion, items.getPreKeyId(),
+                                                  items.getSignedPreKeyId(), items.getBaseKey(),
+                                                  (SignalMessage) ciphertextMessage);
+    }
+
+    sessionState.setSenderChainKey(step.second());
+
+    return ciphertextMessage;
+  }
+
   /**
    * Decrypt a message.
    *
@@ -165,7 +195,10 @@ public class SessionCipher {
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
              InvalidKeyIdException, InvalidKeyException
   {
-    synchronized (SESSION_LOCK) {
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
       SessionRecord     sessionRecord    = sessionStore.loadSession(remoteAddress);
       Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, ciphertext);
       byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage());
@@ -179,6 +212,8 @@ public class SessionCipher {
       }
 
       return plaintext;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -223,8 +258,10 @@ public class SessionCipher {
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
              NoSessionException
   {
-    synchronized (SESSION_LOCK) {
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
 
+    try {
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new NoSessionException("No session for: " + remoteAddress);
       }
@@ -237,44 +274,221 @@ public class SessionCipher {
       sessionStore.storeSession(remoteAddress, sessionRecord);
 
       return plaintext;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Decrypt a backlog of messages, such as those queued while this device was offline.
+   *
+   * @see #decryptBatch(List, DecryptionCallback)
+   */
+  public List<DecryptionResult> decryptBatch(List<? extends CiphertextMessage> ciphertexts) {
+    return decryptBatch(ciphertexts, new NullDecryptionCallback());
+  }
+
+  /**
+   * Decrypt a backlog of messages, such as those queued while this device was offline.
+   * <p>
+   * The session is loaded once and stored once, rather than once per message.  Messages are
+   * grouped by sender ratchet key, with groups taken in the order they first appear, and each
+   * group is processed in counter order, so messages that arrived out of order do not leave
+   * skipped message keys behind only to consume them again a moment later.
+   * <p>
+   * A message that fails to decrypt does not affect the others, and its failure is reported in
+   * its result.  Both {@link SignalMessage}s and {@link PreKeySignalMessage}s are accepted.
+   *
+   * @param  ciphertexts The messages to decrypt.
+   * @param  callback    A callback that is triggered for each message after it has been decrypted,
+   *                     but before the updated session state has been committed to the session
+   *                     DB.  If it throws, nothing from the batch is committed.
+   *
+   * @return The result for each message, in the same order as ciphertexts.
+   */
+  public List<DecryptionResult> decryptBatch(List<? extends CiphertextMessage> ciphertexts,
+                                             DecryptionCallback callback)
+  {
+    DecryptionResult[] results = new DecryptionResult[ciphertexts.size()];
+    Lock               lock    = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
+      SessionRecord sessionRecord     = sessionStore.loadSession(remoteAddress);
+      boolean       hasSession        = sessionStore.containsSession(remoteAddress);
+      boolean       modified          = false;
+      List<Integer> unsignedPreKeyIds = new LinkedList<>();
+
+      for (int index : getBatchOrder(ciphertexts)) {
+        CiphertextMessage ciphertext = ciphertexts.get(index);
+
+        try {
+          byte[] plaintext;
+
+          if (ciphertext instanceof PreKeySignalMessage) {
+            PreKeySignalMessage preKeyMessage = (PreKeySignalMessage) ciphertext;
+            SessionRecord       snapshot      = new SessionRecord(sessionRecord);
+
+            try {
+              Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, preKeyMessage);
+              plaintext = decrypt(sessionRecord, preKeyMessage.getWhisperMessage());
+
+              if (unsignedPreKeyId.isPresent()) {
+                unsignedPreKeyIds.add(unsignedPreKeyId.get());
+              }
+            } catch (InvalidKeyIdException | InvalidKeyException | InvalidMessageException |
+                     DuplicateMessageException | LegacyMessageException e)
+            {
+              sessionRecord = snapshot;
+              throw e;
+            }
+
+            hasSession = true;
+          } else if (ciphertext instanceof SignalMessage) {
+            if (!hasSession) {
+              throw new NoSessionException("No session for: " + remoteAddress);
+            }
+
+            plaintext = decrypt(sessionRecord, (SignalMessage) ciphertext);
+          } else {
+            throw new InvalidMessageException("Unsupported message type: " + ciphertext.getType());
+          }
+
+          callback.handlePlaintext(plaintext);
+
+          results[index] = new DecryptionResult(ciphertext, plaintext, null);
+          modified       = true;
+        } catch (InvalidKeyIdException | InvalidKeyException | InvalidMessageException |
+                 DuplicateMessageException | LegacyMessageException | NoSessionException e)
+        {
+          results[index] = new DecryptionResult(ciphertext, null, e);
+        }
+      }
+
+      if (modified) {
+        sessionStore.storeSession(remoteAddress, sessionRecord);
+      }
+
+      for (int unsignedPreKeyId : unsignedPreKeyIds) {
+        preKeyStore.removePreKey(unsignedPreKeyId);
+      }
+
+      return Arrays.asList(results);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Orders a batch by sender ratchet key, in order of first appearance, and then by counter.
+   * Messages of an unsupported type are placed first, so they fail before anything else.
+   *
+   * @return the indexes of the messages, in processing order.
+   */
+  private static List<Integer> getBatchOrder(List<? extends CiphertextMessage> ciphertexts) {
+    final Map<ECPublicKey, Integer> groups  = new HashMap<>();
+    final int[]                     group   = new int[ciphertexts.size()];
+    final int[]                     counter = new int[ciphertexts.size()];
+    List<Integer>                   order   = new ArrayList<>(ciphertexts.size());
+
+    for (int i=0;i<ciphertexts.size();i++) {
+      CiphertextMessage ciphertext = ciphertexts.get(i);
+      SignalMessage     message;
+
+      if      (ciphertext instanceof PreKeySignalMessage) message = ((PreKeySignalMessage) ciphertext).getWhisperMessage();
+      else if (ciphertext instanceof SignalMessage)       message = (SignalMessage) ciphertext;
+      else                                                message = null;
+
+      if (message != null) {
+        Integer existing = groups.get(message.getSenderRatchetKey());
+
+        if (existing == null) {
+          existing = groups.size();
+          groups.put(message.getSenderRatchetKey(), existing);
+        }
+
+        group[i]   = existing;
+        counter[i] = message.getCounter();
+      } else {
+        group[i] = -1;
+      }
+
+      order.add(i);
     }
+
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        if (group[lhs] != group[rhs]) return group[lhs] < group[rhs] ? -1 : 1;
+        if (counter[lhs] != counter[rhs]) return counter[lhs] < counter[rhs] ? -1 : 1;
+        return 0;
+      }
+    });
+
+    return order;
   }
 
+  /**
+   * Decrypts a message against the states of a record.  A message on a ratchet key that one of
+   * the states already has a receiver chain for is routed straight to that state, and trial
+   * decryption across every state is only the fallback for a ratchet key none of them have seen.
+   */
   private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException
   {
-    synchronized (SESSION_LOCK) {
-      Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStates().iterator();
-      List<Exception>        exceptions     = new LinkedList<>();
+    ECPublicKey     theirEphemeral = ciphertext.getSenderRatchetKey();
+    SessionState    currentState   = sessionRecord.getSessionState();
+    SessionState    routedState    = null;
+    List<Exception> exceptions     = new LinkedList<>();
 
-      try {
-        SessionState sessionState = new SessionState(sessionRecord.getSessionState());
-        byte[]       plaintext    = decrypt(sessionState, ciphertext);
+    if (!currentState.hasReceiverChain(theirEphemeral)) {
+      routedState = sessionRecord.getPreviousSessionState(theirEphemeral);
+    }
 
-        sessionRecord.setState(sessionState);
-        return plaintext;
+    if (routedState != null) {
+      try {
+        return decryptPreviousState(sessionRecord, routedState, ciphertext);
       } catch (InvalidMessageException e) {
         exceptions.add(e);
       }
+    }
 
-      while (previousStates.hasNext()) {
-        try {
-          SessionState promotedState = new SessionState(previousStates.next());
-          byte[]       plaintext     = decrypt(promotedState, ciphertext);
+    try {
+      return decrypt(currentState, ciphertext);
+    } catch (InvalidMessageException e) {
+      exceptions.add(e);
+    }
 
-          previousStates.remove();
-          sessionRecord.promoteState(promotedState);
+    for (SessionState previousState : sessionRecord.getPreviousSessionStates()) {
+      if (previousState == routedState) continue;
 
-          return plaintext;
-        } catch (InvalidMessageException e) {
-          exceptions.add(e);
-        }
+      try {
+        return decryptPreviousState(sessionRecord, previousState, ciphertext);
+      } catch (InvalidMessageException e) {
+        exceptions.add(e);
       }
-
-      throw new InvalidMessageException("No valid sessions.", exceptions);
     }
+
+    throw new InvalidMessageException("No valid sessions.", exceptions);
   }
 
+  private byte[] decryptPreviousState(SessionRecord sessionRecord, SessionState previousState,
+                                      SignalMessage ciphertext)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException
+  {
+    byte[] plaintext = decrypt(previousState, ciphertext);
+
+    sessionRecord.getPreviousSessionStates().remove(previousState);
+    sessionRecord.promoteState(previousState);
+
+    return plaintext;
+  }
+
+  /**
+   * Decrypts a message against a single session state.  The state is only modified once the
+   * message has been authenticated and decrypted, so a failed attempt leaves it untouched and
+   * callers do not need to work on a copy.
+   */
   private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage)
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException
   {
@@ -290,15 +504,21 @@ public class SessionCipher {
 
     ECPublicKey    theirEphemeral    = ciphertextMessage.getSenderRatchetKey();
     int            counter           = ciphertextMessage.getCounter();
-    ChainKey       chainKey          = getOrCreateChainKey(sessionState, theirEphemeral);
-    MessageKeys    messageKeys       = getOrCreateMessageKeys(sessionState, theirEphemeral,
-                                                              chainKey, counter);
+    ReceiverChain  receiverChain     = sessionState.getReceiverChain(theirEphemeral);
+    RatchetStep    ratchetStep       = getOrCreateRatchetStep(sessionState, receiverChain, theirEphemeral);
+    ReceiveStep    receiveStep       = getOrCreateMessageKeys(receiverChain, ratchetStep.receiverChainKey, counter);
 
     ciphertextMessage.verifyMac(sessionState.getRemoteIdentityKey(),
                                 sessionState.getLocalIdentityKey(),
-                                messageKeys.getMacKey());
+                                receiveStep.messageKeys.getMacKey());
+
+    byte[] plaintext = getPlaintext(receiveStep.messageKeys, ciphertextMessage.getBody());
+
+    if (receiverChain == null) {
+      receiverChain = ratchetStep.commit(sessionState, theirEphemeral);
+    }
 
-    byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBody());
+    receiveStep.commit(receiverChain);
 
     sessionState.clearUnacknowledgedPreKeyMessage();
 
@@ -306,49 +526,75 @@ public class SessionCipher {
   }
 
   public int getSessionVersion() {
-    synchronized (SESSION_LOCK) {
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new IllegalStateException(String.format("No session for (%s)!", remoteAddress));
       }
 
       SessionRecord record = sessionStore.loadSession(remoteAddress);
       return record.getSessionState().getSessionVersion();
+    } finally {
+      lock.unlock();
     }
   }
 
-  private ChainKey getOrCreateChainKey(SessionState sessionState, ECPublicKey theirEphemeral)
+  /**
+   * Returns the lock that guards the session with a remote address.
+   * <p>
+   * Every encrypt, decrypt and session build for an address runs while holding
+   * this lock, so operations on a single session are strictly ordered.  Sessions
+   * with different addresses are guarded by independent locks and can be used
+   * from multiple threads in parallel.  Callers that need to perform their own
+   * read-modify-write of a {@link SessionRecord} should hold this lock while doing so.
+   *
+   * @param remoteAddress The remote address of the session.
+   * @return the lock for that session.
+   */
+  public static Lock getSessionLock(SignalProtocolAddress remoteAddress) {
+    return SESSION_LOCKS.get(remoteAddress);
+  }
+
+  /**
+   * Returns the locks that guard the sessions with a set of remote addresses, in the
+   * order they must be acquired in.
+   */
+  static List<Lock> getSessionLocks(Collection<SignalProtocolAddress> remoteAddresses) {
+    return SESSION_LOCKS.getAll(remoteAddresses);
+  }
+
+  private RatchetStep getOrCreateRatchetStep(SessionState sessionState, ReceiverChain receiverChain,
+                                             ECPublicKey theirEphemeral)
       throws InvalidMessageException
   {
     try {
-      if (sessionState.hasReceiverChain(theirEphemeral)) {
-        return sessionState.getReceiverChainKey(theirEphemeral);
+      if (receiverChain != null) {
+        return new RatchetStep(receiverChain.getChainKey());
       } else {
         RootKey                 rootKey         = sessionState.getRootKey();
         ECKeyPair               ourEphemeral    = sessionState.getSenderRatchetKeyPair();
-        Pair<RootKey, ChainKey> receiverChain   = rootKey.createChain(theirEphemeral, ourEphemeral);
-        ECKeyPair               ourNewEphemeral = Curve.generateKeyPair();
-        Pair<RootKey, ChainKey> senderChain     = receiverChain.first().createChain(theirEphemeral, ourNewEphemeral);
+        Pair<RootKey, ChainKey> receivingChain  = rootKey.createChain(theirEphemeral, ourEphemeral);
+        ECKeyPair               ourNewEphemeral = Curve.generateEphemeralKeyPair();
+        Pair<RootKey, ChainKey> sendingChain    = receivingChain.first().createChain(theirEphemeral, ourNewEphemeral);
 
-        sessionState.setRootKey(senderChain.first());
-        sessionState.addReceiverChain(theirEphemeral, receiverChain.second());
-        sessionState.setPreviousCounter(Math.max(sessionState.getSenderChainKey().getIndex()-1, 0));
-        sessionState.setSenderChain(ourNewEphemeral, senderChain.second());
-
-        return receiverChain.second();
+        return new RatchetStep(receivingChain.second(), sendingChain.first(),
+                               ourNewEphemeral, sendingChain.second());
       }
     } catch (InvalidKeyException e) {
       throw new InvalidMessageException(e);
     }
   }
 
-  private MessageKeys getOrCreateMessageKeys(SessionState sessionState,
-                                             ECPublicKey theirEphemeral,
-                                             ChainKey chainKey, int counter)
+  private ReceiveStep getOrCreateMessageKeys(ReceiverChain receiverChain, ChainKey chainKey, int counter)
       throws InvalidMessageException, DuplicateMessageException
   {
     if (chainKey.getIndex() > counter) {
-      if (sessionState.hasMessageKeys(theirEphemeral, counter)) {
-        return sessionState.removeMessageKeys(theirEphemeral, counter);
+      MessageKeys messageKeys = receiverChain != null ? receiverChain.getMessageKeys(counter) : null;
+
+      if (messageKeys != null) {
+        return new ReceiveStep(messageKeys);
       } else {
         throw new DuplicateMessageException("Received message with old counter: " +
                                                 chainKey.getIndex() + " , " + counter);
@@ -359,17 +605,21 @@ public class SessionCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
+    List<MessageKeys> skippedMessageKeys = new LinkedList<>();
+
     while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionState.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
+      Pair<MessageKeys, ChainKey> step = chainKey.getMessageKeysAndNextChainKey();
+
+      skippedMessageKeys.add(step.first());
+      chainKey = step.second();
     }
 
-    sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
-    return chainKey.getMessageKeys();
+    Pair<MessageKeys, ChainKey> step = chainKey.getMessageKeysAndNextChainKey();
+
+    return new ReceiveStep(step.first(), skippedMessageKeys, step.second());
   }
 
-  private byte[] getCiphertext(MessageKeys messageKeys, byte[] plaintext) {
+  private static byte[] getCiphertext(MessageKeys messageKeys, byte[] plaintext) {
     try {
       Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
       return cipher.doFinal(plaintext);
@@ -378,7 +628,7 @@ public class SessionCipher {
     }
   }
 
-  private byte[] getPlaintext(MessageKeys messageKeys, byte[] cipherText)
+  private static byte[] getPlaintext(MessageKeys messageKeys, byte[] cipherText)
       throws InvalidMessageException
   {
     try {
@@ -389,15 +639,109 @@ public class SessionCipher {
     }
   }
 
-  private Cipher getCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
-    try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(mode, key, iv);
-      return cipher;
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
+  private static Cipher getCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
+    return CryptoPrimitives.getAesCbcCipher(mode, key, iv);
+  }
+
+  /**
+   * The (possibly empty) DH ratchet step needed to receive on a sender ratchet key.
+   */
+  private static class RatchetStep {
+    private final ChainKey  receiverChainKey;
+    private final RootKey   rootKey;
+    private final ECKeyPair senderRatchetKeyPair;
+    private final ChainKey  senderChainKey;
+
+    private RatchetStep(ChainKey receiverChainKey) {
+      this(receiverChainKey, null, null, null);
+    }
+
+    private RatchetStep(ChainKey receiverChainKey, RootKey rootKey,
+                        ECKeyPair senderRatchetKeyPair, ChainKey senderChainKey)
     {
-      throw new AssertionError(e);
+      this.receiverChainKey     = receiverChainKey;
+      this.rootKey              = rootKey;
+      this.senderRatchetKeyPair = senderRatchetKeyPair;
+      this.senderChainKey       = senderChainKey;
+    }
+
+    private ReceiverChain commit(SessionState sessionState, ECPublicKey theirEphemeral) {
+      sessionState.setRootKey(rootKey);
+      ReceiverChain receiverChain = sessionState.addReceiverChain(theirEphemeral, receiverChainKey);
+      sessionState.setPreviousCounter(Math.max(sessionState.getSenderChainKey().getIndex()-1, 0));
+      sessionState.setSenderChain(senderRatchetKeyPair, senderChainKey);
+
+      return receiverChain;
+    }
+  }
+
+  /**
+   * The message keys for a received message, along with the receiver chain updates
+   * needed to consume them.
+   */
+  private static class ReceiveStep {
+    private final MessageKeys       messageKeys;
+    private final List<MessageKeys> skippedMessageKeys;
+    private final ChainKey          nextChainKey;
+
+    private ReceiveStep(MessageKeys storedMessageKeys) {
+      this(storedMessageKeys, null, null);
+    }
+
+    private ReceiveStep(MessageKeys messageKeys, List<MessageKeys> skippedMessageKeys, ChainKey nextChainKey) {
+      this.messageKeys        = messageKeys;
+      this.skippedMessageKeys = skippedMessageKeys;
+      this.nextChainKey       = nextChainKey;
+    }
+
+    private void commit(ReceiverChain receiverChain) {
+      if (nextChainKey == null) {
+        receiverChain.removeMessageKeys(messageKeys.getCounter());
+        return;
+      }
+
+      for (MessageKeys skipped : skippedMessageKeys) {
+        receiverChain.setMessageKeys(skipped);
+      }
+
+      receiverChain.setChainKey(nextChainKey);
+    }
+  }
+
+  /**
+   * The outcome of decrypting one message from a batch.
+   */
+  public static class DecryptionResult {
+    private final CiphertextMessage ciphertext;
+    private final byte[]            plaintext;
+    private final Exception         exception;
+
+    private DecryptionResult(CiphertextMessage ciphertext, byte[] plaintext, Exception exception) {
+      this.ciphertext = ciphertext;
+      this.plaintext  = plaintext;
+      this.exception  = exception;
+    }
+
+    public CiphertextMessage getCiphertext() {
+      return ciphertext;
+    }
+
+    public boolean isSuccess() {
+      return exception == null;
+    }
+
+    /**
+     * @return the plaintext, or null if the message could not be decrypted.
+     */
+    public byte[] getPlaintext() {
+      return plaintext;
+    }
+
+    /**
+     * @return why the message could not be decrypted, or null if it was.
+     */
+    public Exception getException() {
+      return exception;
     }
   }
 
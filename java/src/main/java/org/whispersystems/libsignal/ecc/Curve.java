@@ -5,28 +5,131 @@
  */
 package org.whispersystems.libsignal.ecc;
 
-import org.whispersystems.curve25519.Curve25519;
-import org.whispersystems.curve25519.Curve25519KeyPair;
 import org.whispersystems.curve25519.VrfSignatureVerificationFailedException;
 import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.logging.Log;
 
-import static org.whispersystems.curve25519.Curve25519.BEST;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Curve {
 
-  public static boolean isNative() {
-    return Curve25519.getInstance(BEST).isNative();
+  private static final String TAG = Curve.class.getSimpleName();
+
+  private static volatile CurveProvider provider = new Curve25519CurveProvider();
+
+  /**
+   * @return the provider that all curve operations are performed with.
+   */
+  public static CurveProvider getProvider() {
+    return provider;
   }
 
-  public static ECKeyPair generateKeyPair() {
-    Curve25519KeyPair keyPair = Curve25519.getInstance(BEST).generateKeyPair();
+  /**
+   * Replaces the provider that all curve operations are performed with.  This is meant
+   * to be called once at startup, before any keys are generated.
+   *
+   * @param provider The new provider.
+   */
+  public static void setProvider(CurveProvider provider) {
+    if (provider == null) {
+      throw new IllegalArgumentException("Provider must not be null");
+    }
+
+    Curve.provider = provider;
+  }
+
+  /**
+   * @return curve25519-java, and the JDK's X25519 if the platform supports it.
+   */
+  public static List<CurveProvider> getAvailableProviders() {
+    List<CurveProvider> providers = new ArrayList<>();
+    providers.add(new Curve25519CurveProvider());
+
+    if (XdhCurveProvider.isAvailable()) {
+      providers.add(new XdhCurveProvider());
+    }
+
+    return providers;
+  }
+
+  /**
+   * Times each of the {@link #getAvailableProviders() available providers} and installs
+   * the fastest.  Each round generates a key pair and performs two agreements, as a DH
+   * ratchet step does.  A provider whose agreement does not match the default provider's
+   * is never selected.  This takes up to a second, so call it once at startup if
+   * at all.
+   *
+   * @return the provider that was installed.
+   */
+  public static CurveProvider selectFastestProvider() {
+    List<CurveProvider> providers = getAvailableProviders();
+    CurveProvider       reference = providers.get(0);
+    ECKeyPair           ours      = reference.generateKeyPair();
+    ECKeyPair           theirs    = reference.generateKeyPair();
+    CurveProvider       fastest   = reference;
+    long                best      = Long.MAX_VALUE;
 
     try {
-      return new ECKeyPair(new ECPublicKey(keyPair.getPublicKey()),
-              new ECPrivateKey(keyPair.getPrivateKey()));
+      byte[] expected = reference.calculateAgreement(theirs.getPublicKey().getBytes(), ours.getPrivateKey().getBytes());
+
+      for (CurveProvider candidate : providers) {
+        if (!Arrays.equals(expected, candidate.calculateAgreement(theirs.getPublicKey().getBytes(), ours.getPrivateKey().getBytes()))) {
+          Log.w(TAG, "Skipping " + candidate + ", agreement does not match");
+          continue;
+        }
+
+        timeRounds(candidate, theirs, 100);
+
+        long elapsed = timeRounds(candidate, theirs, 100);
+
+        Log.i(TAG, candidate + ": " + (elapsed / 100) + "ns per round");
+
+        if (elapsed < best) {
+          best    = elapsed;
+          fastest = candidate;
+        }
+      }
     } catch (InvalidKeyException e) {
-      throw new AssertionError("Invalid key on generation, this should never happen", e);
+      throw new AssertionError(e);
     }
+
+    setProvider(fastest);
+    return fastest;
+  }
+
+  private static long timeRounds(CurveProvider provider, ECKeyPair theirs, int count)
+      throws InvalidKeyException
+  {
+    long start = System.nanoTime();
+
+    for (int i=0;i<count;i++) {
+      ECKeyPair ours = provider.generateKeyPair();
+
+      provider.calculateAgreement(theirs.getPublicKey().getBytes(), ours.getPrivateKey().getBytes());
+      provider.calculateAgreement(theirs.getPublicKey().getBytes(), ours.getPrivateKey().getBytes());
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  public static boolean isNative() {
+    return provider.isNative();
+  }
+
+  public static ECKeyPair generateKeyPair() {
+    return provider.generateKeyPair();
+  }
+
+  /**
+   * Generates a key pair for a single key agreement, such as a sending ratchet key or a
+   * session base key.  It is taken from the installed {@link EphemeralKeyPool} when
+   * there is one.
+   */
+  public static ECKeyPair generateEphemeralKeyPair() {
+    EphemeralKeyPool pool = EphemeralKeyPool.getInstalled();
+    return pool != null ? pool.take() : generateKeyPair();
   }
 
   public static byte[] calculateAgreement(ECPublicKey publicKey, ECPrivateKey privateKey)
@@ -41,9 +144,7 @@ public class Curve {
     }
 
 
-    return Curve25519.getInstance(BEST)
-                     .calculateAgreement(((ECPublicKey) publicKey).getBytes(),
-                                         ((ECPrivateKey) privateKey).getBytes());
+    return provider.calculateAgreement(publicKey.getBytes(), privateKey.getBytes());
   }
 
   public static boolean verifySignature(ECPublicKey signingKey, byte[] message, byte[] signature)
@@ -53,8 +154,7 @@ public class Curve {
       throw new InvalidKeyException("Values must not be null");
     }
 
-    return Curve25519.getInstance(BEST)
-                     .verifySignature(((ECPublicKey) signingKey).getBytes(), message, signature);
+    return provider.verifySignature(signingKey.getBytes(), message, signature);
   }
 
   public static byte[] calculateSignature(ECPrivateKey signingKey, byte[] message)
@@ -64,8 +164,7 @@ public class Curve {
       throw new InvalidKeyException("Values must not be null");
     }
 
-    return Curve25519.getInstance(BEST)
-                     .calculateSignature(((ECPrivateKey) signingKey).getBytes(), message);
+    return provider.calculateSignature(signingKey.getBytes(), message);
   }
 
   public static byte[] calculateVrfSignature(ECPrivateKey signingKey, byte[] message)
@@ -75,8 +174,7 @@ public class Curve {
       throw new InvalidKeyException("Values must not be null");
     }
 
-    return Curve25519.getInstance(BEST)
-                     .calculateVrfSignature(((ECPrivateKey)signingKey).getBytes(), message);
+    return provider.calculateVrfSignature(signingKey.getBytes(), message);
   }
 
   public static byte[] verifyVrfSignature(ECPublicKey signingKey, byte[] message, byte[] signature)
@@ -86,8 +184,7 @@ public class Curve {
       throw new InvalidKeyException("Values must not be null");
     }
 
-    return Curve25519.getInstance(BEST)
-                     .verifyVrfSignature(((ECPublicKey) signingKey).getBytes(), message, signature);
+    return provider.verifyVrfSignature(signingKey.getBytes(), message, signature);
   }
 
 }
@@ -0,0 +1,75 @@
+package org.whispersystems.libsignal.ecc;
+
+import org.whispersystems.curve25519.Curve25519;
+import org.whispersystems.curve25519.Curve25519KeyPair;
+import org.whispersystems.curve25519.VrfSignatureVerificationFailedException;
+import org.whispersystems.libsignal.InvalidKeyException;
+
+/**
+ * A {@link CurveProvider} backed by curve25519-java, which uses its native library
+ * where one is available.  This is the default provider.
+ */
+public class Curve25519CurveProvider implements CurveProvider {
+
+  private final Curve25519 curve;
+
+  public Curve25519CurveProvider() {
+    this(Curve25519.BEST);
+  }
+
+  /**
+   * @param type A curve25519-java provider type, such as {@link Curve25519#BEST}.
+   */
+  public Curve25519CurveProvider(String type) {
+    this.curve = Curve25519.getInstance(type);
+  }
+
+  @Override
+  public boolean isNative() {
+    return curve.isNative();
+  }
+
+  @Override
+  public ECKeyPair generateKeyPair() {
+    Curve25519KeyPair keyPair = curve.generateKeyPair();
+
+    try {
+      return new ECKeyPair(new ECPublicKey(keyPair.getPublicKey()),
+                           new ECPrivateKey(keyPair.getPrivateKey()));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError("Invalid key on generation, this should never happen", e);
+    }
+  }
+
+  @Override
+  public byte[] calculateAgreement(byte[] publicKey, byte[] privateKey) {
+    return curve.calculateAgreement(publicKey, privateKey);
+  }
+
+  @Override
+  public byte[] calculateSignature(byte[] privateKey, byte[] message) {
+    return curve.calculateSignature(privateKey, message);
+  }
+
+  @Override
+  public boolean verifySignature(byte[] publicKey, byte[] message, byte[] signature) {
+    return curve.verifySignature(publicKey, message, signature);
+  }
+
+  @Override
+  public byte[] calculateVrfSignature(byte[] privateKey, byte[] message) {
+    return curve.calculateVrfSignature(privateKey, message);
+  }
+
+  @Override
+  public byte[] verifyVrfSignature(byte[] publicKey, byte[] message, byte[] signature)
+      throws VrfSignatureVerificationFailedException
+  {
+    return curve.verifyVrfSignature(publicKey, message, signature);
+  }
+
+  @Override
+  public String toString() {
+    return "curve25519-java" + (isNative() ? " (native)" : "");
+  }
+}
@@ -0,0 +1,34 @@
+package org.whispersystems.libsignal.ecc;
+
+import org.whispersystems.curve25519.VrfSignatureVerificationFailedException;
+import org.whispersystems.libsignal.InvalidKeyException;
+
+/**
+ * A Curve25519 implementation behind {@link Curve}.
+ * <p>
+ * Keys are the raw 32 byte encodings used throughout the library, and every provider
+ * must produce results that are interchangeable with every other provider's.  Arguments
+ * have already been checked for null by {@link Curve}.
+ *
+ * @see Curve#setProvider(CurveProvider)
+ */
+public interface CurveProvider {
+
+  /**
+   * @return true if this provider is backed by native code.
+   */
+  boolean isNative();
+
+  ECKeyPair generateKeyPair();
+
+  byte[] calculateAgreement(byte[] publicKey, byte[] privateKey) throws InvalidKeyException;
+
+  byte[] calculateSignature(byte[] privateKey, byte[] message);
+
+  boolean verifySignature(byte[] publicKey, byte[] message, byte[] signature);
+
+  byte[] calculateVrfSignature(byte[] privateKey, byte[] message);
+
+  byte[] verifyVrfSignature(byte[] publicKey, byte[] message, byte[] signature)
+      throws VrfSignatureVerificationFailedException;
+}
@@ -16,6 +16,8 @@ import java.util.Arrays;
 public class ECPublicKey implements Comparable<ECPublicKey> {
     private final byte[] bytes;
 
+    private int hash;
+
     public ECPublicKey(byte[] bytes) throws InvalidKeyException {
         if (bytes.length != 32) {
             throw new InvalidKeyException("Bad key length: " + bytes.length);
@@ -55,7 +57,13 @@ public class ECPublicKey implements Comparable<ECPublicKey> {
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        int result = hash;
+
+        if (result == 0) {
+            result = hash = Arrays.hashCode(bytes);
+        }
+
+        return result;
     }
 
     @Override
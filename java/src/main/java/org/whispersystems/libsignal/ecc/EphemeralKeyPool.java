@@ -0,0 +1,138 @@
+package org.whispersystems.libsignal.ecc;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of key pairs generated ahead of time on a background thread.
+ * <p>
+ * Sending ratchet keys and session base keys are otherwise generated inline, while
+ * the session lock is held.  Once a pool is {@link #install(EphemeralKeyPool) installed},
+ * {@link Curve#generateEphemeralKeyPair()} takes from it instead, and generates inline
+ * only when the pool has run dry.  The background thread refills the pool up to its
+ * depth and then waits until a key is taken.
+ * <p>
+ * Every key pair is handed out at most once.
+ */
+public class EphemeralKeyPool implements Closeable {
+
+  private static volatile EphemeralKeyPool installed;
+
+  private final ArrayDeque<ECKeyPair> keyPairs;
+  private final int                   depth;
+  private final Thread                generator;
+  private final AtomicLong            hits   = new AtomicLong();
+  private final AtomicLong            misses = new AtomicLong();
+
+  private boolean closed;
+
+  /**
+   * Creates a pool and starts generating keys for it.
+   *
+   * @param depth The number of key pairs to keep ready.
+   */
+  public EphemeralKeyPool(int depth) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("Bad pool depth: " + depth);
+    }
+
+    this.keyPairs  = new ArrayDeque<>(depth);
+    this.depth     = depth;
+    this.generator = new Thread(new Generator(), "EphemeralKeyPool");
+    this.generator.setDaemon(true);
+    this.generator.start();
+  }
+
+  /**
+   * Makes a pool the source of ephemeral keys for all sessions.
+   *
+   * @param pool The pool to use, or null to generate every key inline.
+   */
+  public static void install(EphemeralKeyPool pool) {
+    installed = pool;
+  }
+
+  /**
+   * @return the installed pool, or null if there is none.
+   */
+  public static EphemeralKeyPool getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Takes a key pair from the pool, or generates one if the pool is empty.
+   *
+   * @return a key pair that has not been handed out before.
+   */
+  public ECKeyPair take() {
+    ECKeyPair keyPair;
+
+    synchronized (this) {
+      keyPair = keyPairs.poll();
+      if (keyPair != null) notifyAll();
+    }
+
+    if (keyPair != null) {
+      hits.incrementAndGet();
+      return keyPair;
+    }
+
+    misses.incrementAndGet();
+    return Curve.generateKeyPair();
+  }
+
+  /**
+   * @return the number of key pairs ready to be taken.
+   */
+  public synchronized int size() {
+    return keyPairs.size();
+  }
+
+  /**
+   * @return the number of times {@link #take()} was served from the pool.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of times {@link #take()} found the pool empty and generated inline.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Stops the background thread.  Keys already in the pool can still be taken, after
+   * which {@link #take()} generates inline.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  private class Generator implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          ECKeyPair keyPair = Curve.generateKeyPair();
+
+          synchronized (EphemeralKeyPool.this) {
+            while (keyPairs.size() >= depth && !closed) {
+              EphemeralKeyPool.this.wait();
+            }
+
+            if (closed) return;
+
+            keyPairs.add(keyPair);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Nothing is waiting on this thread, so there is no one to hand the interrupt to.
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.whispersystems.libsignal.ecc;
+
+import org.whispersystems.curve25519.VrfSignatureVerificationFailedException;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * A {@link CurveProvider} that uses the platform's X25519 {@link KeyAgreement}, which
+ * JDK 11 and later provide and which recent JDKs accelerate, for key generation and
+ * agreement.  The JDK has no XEdDSA, so signatures and VRF signatures are delegated to
+ * another provider.
+ * <p>
+ * Raw keys are handed to the JDK through their fixed DER prefixes, so nothing here
+ * depends on JDK 11 types.  One difference from curve25519-java is that agreement with
+ * a low order public key fails with an {@link InvalidKeyException} rather than
+ * producing an all-zero secret.
+ */
+public class XdhCurveProvider implements CurveProvider {
+
+  private static final String ALGORITHM = "X25519";
+
+  private static final byte[] PUBLIC_KEY_PREFIX  = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00};
+  private static final byte[] PRIVATE_KEY_PREFIX = {0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x04, 0x22, 0x04, 0x20};
+  private static final byte[] BASE_POINT         = new byte[32];
+
+  static {
+    BASE_POINT[0] = 9;
+  }
+
+  private static final ThreadLocal<KeyFactory> KEY_FACTORY = new ThreadLocal<KeyFactory>() {
+    @Override
+    protected KeyFactory initialValue() {
+      try {
+        return KeyFactory.getInstance(ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<KeyAgreement> KEY_AGREEMENT = new ThreadLocal<KeyAgreement>() {
+    @Override
+    protected KeyAgreement initialValue() {
+      try {
+        return KeyAgreement.getInstance(ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private final CurveProvider signer;
+  private final SecureRandom  random = new SecureRandom();
+
+  /**
+   * Uses curve25519-java for signatures.  Check {@link #isAvailable()} first.
+   */
+  public XdhCurveProvider() {
+    this(new Curve25519CurveProvider());
+  }
+
+  /**
+   * @param signer The provider to calculate and verify signatures with.
+   */
+  public XdhCurveProvider(CurveProvider signer) {
+    if (!isAvailable()) {
+      throw new IllegalStateException("X25519 is not supported by this platform");
+    }
+
+    this.signer = signer;
+  }
+
+  /**
+   * @return true if the platform supports X25519 key agreement.
+   */
+  public static boolean isAvailable() {
+    try {
+      KeyFactory.getInstance(ALGORITHM);
+      KeyAgreement.getInstance(ALGORITHM);
+      return true;
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean isNative() {
+    return false;
+  }
+
+  @Override
+  public ECKeyPair generateKeyPair() {
+    byte[] privateKey = new byte[32];
+    random.nextBytes(privateKey);
+
+    privateKey[0]  &= 248;
+    privateKey[31] &= 127;
+    privateKey[31] |= 64;
+
+    try {
+      return new ECKeyPair(new ECPublicKey(calculateAgreement(BASE_POINT, privateKey)),
+                           new ECPrivateKey(privateKey));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError("Invalid key on generation, this should never happen", e);
+    }
+  }
+
+  @Override
+  public byte[] calculateAgreement(byte[] publicKey, byte[] privateKey) throws InvalidKeyException {
+    try {
+      KeyFactory   keyFactory   = KEY_FACTORY.get();
+      KeyAgreement keyAgreement = KEY_AGREEMENT.get();
+      PublicKey    theirKey     = keyFactory.generatePublic(new X509EncodedKeySpec(ByteUtil.combine(PUBLIC_KEY_PREFIX, publicKey)));
+      PrivateKey   ourKey       = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(ByteUtil.combine(PRIVATE_KEY_PREFIX, privateKey)));
+
+      keyAgreement.init(ourKey);
+      keyAgreement.doPhase(theirKey, true);
+
+      return keyAgreement.generateSecret();
+    } catch (GeneralSecurityException e) {
+      throw new InvalidKeyException(e);
+    }
+  }
+
+  @Override
+  public byte[] calculateSignature(byte[] privateKey, byte[] message) {
+    return signer.calculateSignature(privateKey, message);
+  }
+
+  @Override
+  public boolean verifySignature(byte[] publicKey, byte[] message, byte[] signature) {
+    return signer.verifySignature(publicKey, message, signature);
+  }
+
+  @Override
+  public byte[] calculateVrfSignature(byte[] privateKey, byte[] message) {
+    return signer.calculateVrfSignature(privateKey, message);
+  }
+
+  @Override
+  public byte[] verifyVrfSignature(byte[] publicKey, byte[] message, byte[] signature)
+      throws VrfSignatureVerificationFailedException
+  {
+    return signer.verifyVrfSignature(publicKey, message, signature);
+  }
+
+  @Override
+  public String toString() {
+    return "JDK X25519";
+  }
+}
@@ -17,14 +17,15 @@ import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
 import org.whispersystems.libsignal.groups.state.SenderKeyState;
 import org.whispersystems.libsignal.groups.state.SenderKeyStore;
 import org.whispersystems.libsignal.protocol.SenderKeyMessage;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.StripedLock;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -40,7 +41,7 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class GroupCipher {
 
-  static final Object LOCK = new Object();
+  private static final StripedLock SENDER_KEY_LOCKS = new StripedLock(1024);
 
   private final SenderKeyStore senderKeyStore;
   private final SenderKeyName senderKeyId;
@@ -58,26 +59,30 @@ public class GroupCipher {
    * @throws NoSessionException
    */
   public byte[] encrypt(byte[] paddedPlaintext) throws NoSessionException {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
-        SenderKeyState   senderKeyState = record.getSenderKeyState();
-        SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
-        byte[]           ciphertext     = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintext);
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyState.getKeyId(),
-                                                                 senderKey.getIteration(),
-                                                                 ciphertext,
-                                                                 senderKeyState.getSigningKeyPrivate());
-
-        senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
-
-        senderKeyStore.storeSenderKey(senderKeyId, record);
-
-        return senderKeyMessage.serialize();
-      } catch (InvalidKeyIdException e) {
-        throw new NoSessionException(e);
-      }
+    try {
+      SenderKeyRecord                        record         = senderKeyStore.loadSenderKey(senderKeyId);
+      SenderKeyState                         senderKeyState = record.getSenderKeyState();
+      Pair<SenderMessageKey, SenderChainKey> step           = senderKeyState.getSenderChainKey().getSenderMessageKeyAndNext();
+      SenderMessageKey                       senderKey      = step.first();
+      byte[]                                 ciphertext     = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintext);
+
+      SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyState.getKeyId(),
+                                                               senderKey.getIteration(),
+                                                               ciphertext,
+                                                               senderKeyState.getSigningKeyPrivate());
+
+      senderKeyState.setSenderChainKey(step.second());
+
+      senderKeyStore.storeSenderKey(senderKeyId, record);
+
+      return senderKeyMessage.serialize();
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -115,34 +120,51 @@ public class GroupCipher {
       throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
              NoSessionException
   {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
 
-        if (record.isEmpty()) {
-          throw new NoSessionException("No sender key for: " + senderKeyId);
-        }
+    try {
+      SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
-        SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
+      if (record.isEmpty()) {
+        throw new NoSessionException("No sender key for: " + senderKeyId);
+      }
 
-        senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+      SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
+      SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
 
-        SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+      senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
 
-        byte[] plaintext = getPlainText(senderKey.getIv(), senderKey.getCipherKey(), senderKeyMessage.getCipherText());
+      SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
 
-        callback.handlePlaintext(plaintext);
+      byte[] plaintext = getPlainText(senderKey.getIv(), senderKey.getCipherKey(), senderKeyMessage.getCipherText());
 
-        senderKeyStore.storeSenderKey(senderKeyId, record);
+      callback.handlePlaintext(plaintext);
 
-        return plaintext;
-      } catch (org.whispersystems.libsignal.InvalidKeyException | InvalidKeyIdException e) {
-        throw new InvalidMessageException(e);
-      }
+      senderKeyStore.storeSenderKey(senderKeyId, record);
+
+      return plaintext;
+    } catch (org.whispersystems.libsignal.InvalidKeyException | InvalidKeyIdException e) {
+      throw new InvalidMessageException(e);
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Returns the lock that guards the sender key state for a (group, sender) pair.
+   * <p>
+   * Every group encrypt, decrypt and session build for a {@link SenderKeyName} runs
+   * while holding this lock, so each sender chain is strictly ordered, while different
+   * groups and senders can be used from multiple threads in parallel.
+   *
+   * @param senderKeyName The (groupId, senderId, deviceId) tuple.
+   * @return the lock for that sender key.
+   */
+  public static Lock getSenderKeyLock(SenderKeyName senderKeyName) {
+    return SENDER_KEY_LOCKS.get(senderKeyName);
+  }
+
   private SenderMessageKey getSenderKey(SenderKeyState senderKeyState, int iteration)
       throws DuplicateMessageException, InvalidMessageException
   {
@@ -162,28 +184,26 @@ public class GroupCipher {
     }
 
     while (senderChainKey.getIteration() < iteration) {
-      senderKeyState.addSenderMessageKey(senderChainKey.getSenderMessageKey());
-      senderChainKey = senderChainKey.getNext();
+      Pair<SenderMessageKey, SenderChainKey> step = senderChainKey.getSenderMessageKeyAndNext();
+
+      senderKeyState.addSenderMessageKey(step.first());
+      senderChainKey = step.second();
     }
 
-    senderKeyState.setSenderChainKey(senderChainKey.getNext());
-    return senderChainKey.getSenderMessageKey();
+    Pair<SenderMessageKey, SenderChainKey> step = senderChainKey.getSenderMessageKeyAndNext();
+
+    senderKeyState.setSenderChainKey(step.second());
+    return step.first();
   }
 
   private byte[] getPlainText(byte[] iv, byte[] key, byte[] ciphertext)
       throws InvalidMessageException
   {
     try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
-
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+      Cipher cipher = CryptoPrimitives.getAesCbcCipher(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                                                       new IvParameterSpec(iv));
 
       return cipher.doFinal(ciphertext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
-    {
-      throw new AssertionError(e);
     } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new InvalidMessageException(e);
     }
@@ -191,15 +211,11 @@ public class GroupCipher {
 
   private byte[] getCipherText(byte[] iv, byte[] key, byte[] plaintext) {
     try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
-
-      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+      Cipher cipher = CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                                                       new IvParameterSpec(iv));
 
       return cipher.doFinal(plaintext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException |
-             IllegalBlockSizeException | BadPaddingException | java.security.InvalidKeyException e)
-    {
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new AssertionError(e);
     }
   }
@@ -13,6 +13,8 @@ import org.whispersystems.libsignal.groups.state.SenderKeyStore;
 import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * GroupSessionBuilder is responsible for setting up group SenderKey encrypted sessions.
  *
@@ -44,13 +46,18 @@ public class GroupSessionBuilder {
    * @param senderKeyDistributionMessage A received SenderKeyDistributionMessage.
    */
   public void process(SenderKeyName senderKeyName, SenderKeyDistributionMessage senderKeyDistributionMessage) {
-    synchronized (GroupCipher.LOCK) {
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyName);
+    lock.lock();
+
+    try {
       SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
       senderKeyRecord.addSenderKeyState(senderKeyDistributionMessage.getId(),
                                         senderKeyDistributionMessage.getIteration(),
                                         senderKeyDistributionMessage.getChainKey(),
                                         senderKeyDistributionMessage.getSignatureKey());
       senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -61,28 +68,31 @@ public class GroupSessionBuilder {
    * @return A SenderKeyDistributionMessage that is individually distributed to each member of the group.
    */
   public SenderKeyDistributionMessage create(SenderKeyName senderKeyName) {
-    synchronized (GroupCipher.LOCK) {
-      try {
-        SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyName);
+    lock.lock();
+
+    try {
+      SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
 
-        if (senderKeyRecord.isEmpty()) {
-          senderKeyRecord.setSenderKeyState(KeyHelper.generateSenderKeyId(),
-                                            0,
-                                            KeyHelper.generateSenderKey(),
-                                            KeyHelper.generateSenderSigningKey());
-          senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
-        }
+      if (senderKeyRecord.isEmpty()) {
+        senderKeyRecord.setSenderKeyState(KeyHelper.generateSenderKeyId(),
+                                          0,
+                                          KeyHelper.generateSenderKey(),
+                                          KeyHelper.generateSenderSigningKey());
+        senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
+      }
 
-        SenderKeyState state = senderKeyRecord.getSenderKeyState();
+      SenderKeyState state = senderKeyRecord.getSenderKeyState();
 
-        return new SenderKeyDistributionMessage(state.getKeyId(),
-                                                state.getSenderChainKey().getIteration(),
-                                                state.getSenderChainKey().getSeed(),
-                                                state.getSigningKeyPublic());
+      return new SenderKeyDistributionMessage(state.getKeyId(),
+                                              state.getSenderChainKey().getIteration(),
+                                              state.getSenderChainKey().getSeed(),
+                                              state.getSigningKeyPublic());
 
-      } catch (InvalidKeyIdException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+    } catch (InvalidKeyIdException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    } finally {
+      lock.unlock();
     }
   }
 }
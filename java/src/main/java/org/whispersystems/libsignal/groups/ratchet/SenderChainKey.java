@@ -5,11 +5,10 @@
  */
 package org.whispersystems.libsignal.groups.ratchet;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.Pair;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Each SenderKey is a "chain" of keys, each derived from the previous.
@@ -46,19 +45,23 @@ public class SenderChainKey {
     return new SenderChainKey(iteration + 1, getDerivative(CHAIN_KEY_SEED, chainKey));
   }
 
+  /**
+   * Derives this chain key's message key and the chain key that follows it, keying the
+   * HMAC once for both rather than once for each.
+   */
+  public Pair<SenderMessageKey, SenderChainKey> getSenderMessageKeyAndNext() {
+    Mac mac = CryptoPrimitives.getHmacSha256(chainKey);
+
+    return new Pair<>(new SenderMessageKey(iteration, mac.doFinal(MESSAGE_KEY_SEED)),
+                      new SenderChainKey(iteration + 1, mac.doFinal(CHAIN_KEY_SEED)));
+  }
+
   public byte[] getSeed() {
     return chainKey;
   }
 
   private byte[] getDerivative(byte[] seed, byte[] key) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return CryptoPrimitives.getHmacSha256(key).doFinal(seed);
   }
 
 }
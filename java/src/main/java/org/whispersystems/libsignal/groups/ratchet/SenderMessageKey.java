@@ -6,30 +6,35 @@
 
 package org.whispersystems.libsignal.groups.ratchet;
 
-import org.whispersystems.libsignal.kdf.HKDFv3;
-import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.kdf.HKDF;
+
+import java.util.Arrays;
 
 /**
  * The final symmetric material (IV and Cipher Key) used for encrypting
  * individual SenderKey messages.
+ * <p>
+ * The IV and cipher key are derived from the seed the first time either is
+ * requested, so keys that are only stored for skipped iterations cost nothing
+ * beyond the chain step that produced them.
  *
  * @author Moxie Marlinspike
  */
 public class SenderMessageKey {
 
+  private static final byte[] GROUP_INFO        = "WhisperGroup".getBytes();
+  private static final int    IV_LENGTH         = 16;
+  private static final int    CIPHER_KEY_LENGTH = 32;
+
   private final int    iteration;
-  private final byte[] iv;
-  private final byte[] cipherKey;
   private final byte[] seed;
 
-  public SenderMessageKey(int iteration, byte[] seed) {
-    byte[] derivative = new HKDFv3().deriveSecrets(seed, "WhisperGroup".getBytes(), 48);
-    byte[][] parts    = ByteUtil.split(derivative, 16, 32);
+  private byte[] iv;
+  private byte[] cipherKey;
 
+  public SenderMessageKey(int iteration, byte[] seed) {
     this.iteration = iteration;
     this.seed      = seed;
-    this.iv        = parts[0];
-    this.cipherKey = parts[1];
   }
 
   public int getIteration() {
@@ -37,14 +42,27 @@ public class SenderMessageKey {
   }
 
   public byte[] getIv() {
+    if (iv == null) derive();
     return iv;
   }
 
   public byte[] getCipherKey() {
+    if (cipherKey == null) derive();
     return cipherKey;
   }
 
   public byte[] getSeed() {
     return seed;
   }
+
+  private void derive() {
+    byte[] derivative = new byte[IV_LENGTH + CIPHER_KEY_LENGTH];
+
+    HKDF.createFor(3).deriveSecrets(seed, GROUP_INFO, derivative, 0, derivative.length);
+
+    this.iv        = Arrays.copyOfRange(derivative, 0, IV_LENGTH);
+    this.cipherKey = Arrays.copyOfRange(derivative, IV_LENGTH, derivative.length);
+
+    Arrays.fill(derivative, (byte)0);
+  }
 }
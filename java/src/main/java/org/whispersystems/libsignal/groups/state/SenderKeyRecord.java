@@ -11,14 +11,19 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.StorageProtos;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyRecordStructure;
 
 /**
  * A durable representation of a set of SenderKeyStates for a specific
  * SenderKeyName.
+ * <p>
+ * States are indexed by key id, and ordered from least to most recently added.
+ * Once more than {@link #MAX_STATES} are held, the least recently added is evicted.
  *
  * @author Moxie Marlinspike
  */
@@ -26,15 +31,18 @@ public class SenderKeyRecord {
 
   private static final int MAX_STATES = 5;
 
-  private LinkedList<SenderKeyState> senderKeyStates = new LinkedList<>();
+  private final SenderKeyStates senderKeyStates = new SenderKeyStates();
+
+  private SenderKeyState newestState;
 
   public SenderKeyRecord() {}
 
   public SenderKeyRecord(byte[] serialized) throws IOException {
-    SenderKeyRecordStructure senderKeyRecordStructure = SenderKeyRecordStructure.parseFrom(serialized);
+    SenderKeyRecordStructure                    senderKeyRecordStructure = SenderKeyRecordStructure.parseFrom(serialized);
+    List<StorageProtos.SenderKeyStateStructure> structures               = senderKeyRecordStructure.getSenderKeyStatesList();
 
-    for (StorageProtos.SenderKeyStateStructure structure : senderKeyRecordStructure.getSenderKeyStatesList()) {
-      this.senderKeyStates.add(new SenderKeyState(structure));
+    for (int i=structures.size()-1;i>=0;i--) {
+      putSenderKeyState(new SenderKeyState(structures.get(i)));
     }
   }
 
@@ -43,43 +51,55 @@ public class SenderKeyRecord {
   }
 
   public SenderKeyState getSenderKeyState() throws InvalidKeyIdException {
-    if (!senderKeyStates.isEmpty()) {
-      return senderKeyStates.get(0);
+    if (newestState != null) {
+      return newestState;
     } else {
       throw new InvalidKeyIdException("No key state in record!");
     }
   }
 
   public SenderKeyState getSenderKeyState(int keyId) throws InvalidKeyIdException {
-    for (SenderKeyState state : senderKeyStates) {
-      if (state.getKeyId() == keyId) {
-        return state;
-      }
+    SenderKeyState state = senderKeyStates.get(keyId);
+
+    if (state != null) {
+      return state;
     }
 
     throw new InvalidKeyIdException("No keys for: " + keyId);
   }
 
   public void addSenderKeyState(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
-    senderKeyStates.addFirst(new SenderKeyState(id, iteration, chainKey, signatureKey));
-
-    if (senderKeyStates.size() > MAX_STATES) {
-      senderKeyStates.removeLast();
-    }
+    putSenderKeyState(new SenderKeyState(id, iteration, chainKey, signatureKey));
   }
 
   public void setSenderKeyState(int id, int iteration, byte[] chainKey, ECKeyPair signatureKey) {
     senderKeyStates.clear();
-    senderKeyStates.add(new SenderKeyState(id, iteration, chainKey, signatureKey));
+    putSenderKeyState(new SenderKeyState(id, iteration, chainKey, signatureKey));
   }
 
   public byte[] serialize() {
     SenderKeyRecordStructure.Builder recordStructure = SenderKeyRecordStructure.newBuilder();
+    List<SenderKeyState>             states          = new ArrayList<>(senderKeyStates.values());
 
-    for (SenderKeyState senderKeyState : senderKeyStates) {
-      recordStructure.addSenderKeyStates(senderKeyState.getStructure());
+    for (int i=states.size()-1;i>=0;i--) {
+      recordStructure.addSenderKeyStates(states.get(i).getStructure());
     }
 
     return recordStructure.build().toByteArray();
   }
+
+  private void putSenderKeyState(SenderKeyState state) {
+    senderKeyStates.remove(state.getKeyId());
+    senderKeyStates.put(state.getKeyId(), state);
+    newestState = state;
+  }
+
+  private static class SenderKeyStates extends LinkedHashMap<Integer, SenderKeyState> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, SenderKeyState> eldest) {
+      return size() > MAX_STATES;
+    }
+  }
 }
@@ -16,14 +16,18 @@ import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyStateStructure;
 
 /**
  * Represents the state of an individual SenderKey ratchet.
+ * <p>
+ * The state is held in plain fields and only converted to a {@link SenderKeyStateStructure}
+ * when the record is serialized, so advancing the chain and storing skipped message keys
+ * do not rebuild the protobuf on every step.
  *
  * @author Moxie Marlinspike
  */
@@ -31,7 +35,14 @@ public class SenderKeyState {
 
   private static final int MAX_MESSAGE_KEYS = 2000;
 
-  private SenderKeyStateStructure senderKeyStateStructure;
+  private final int                  keyId;
+  private final ByteString           signingKeyPublic;
+  private final Optional<ByteString> signingKeyPrivate;
+
+  private ECPublicKey                                    decodedSigningKeyPublic;
+  private SenderChainKey                                 senderChainKey;
+  private SenderMessageKeys                              senderMessageKeys;
+  private List<SenderKeyStateStructure.SenderMessageKey> serializedSenderMessageKeys;
 
   public SenderKeyState(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
     this(id, iteration, chainKey, signatureKey, Optional.<ECPrivateKey>absent());
@@ -45,118 +56,131 @@ public class SenderKeyState {
                         ECPublicKey signatureKeyPublic,
                         Optional<ECPrivateKey> signatureKeyPrivate)
   {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(iteration)
-                                              .setSeed(ByteString.copyFrom(chainKey))
-                                              .build();
-
-    SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
-        SenderKeyStateStructure.SenderSigningKey.newBuilder()
-                                                .setPublic(ByteString.copyFrom(signatureKeyPublic.getBytes()));
+    this.keyId             = id;
+    this.senderChainKey    = new SenderChainKey(iteration, chainKey);
+    this.senderMessageKeys = new SenderMessageKeys();
+    this.signingKeyPublic  = ByteString.copyFrom(signatureKeyPublic.getBytes());
 
     if (signatureKeyPrivate.isPresent()) {
-      signingKeyStructure.setPrivate(ByteString.copyFrom(signatureKeyPrivate.get().getBytes()));
+      this.signingKeyPrivate = Optional.of(ByteString.copyFrom(signatureKeyPrivate.get().getBytes()));
+    } else {
+      this.signingKeyPrivate = Optional.absent();
     }
-
-    this.senderKeyStateStructure = SenderKeyStateStructure.newBuilder()
-                                                          .setSenderKeyId(id)
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .setSenderSigningKey(signingKeyStructure)
-                                                          .build();
   }
 
   public SenderKeyState(SenderKeyStateStructure senderKeyStateStructure) {
-    this.senderKeyStateStructure = senderKeyStateStructure;
+    this.keyId                       = senderKeyStateStructure.getSenderKeyId();
+    this.senderChainKey              = new SenderChainKey(senderKeyStateStructure.getSenderChainKey().getIteration(),
+                                                          senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray());
+    this.serializedSenderMessageKeys = senderKeyStateStructure.getSenderMessageKeysList();
+    this.signingKeyPublic            = senderKeyStateStructure.getSenderSigningKey().getPublic();
+
+    if (senderKeyStateStructure.getSenderSigningKey().hasPrivate()) {
+      this.signingKeyPrivate = Optional.of(senderKeyStateStructure.getSenderSigningKey().getPrivate());
+    } else {
+      this.signingKeyPrivate = Optional.absent();
+    }
   }
 
   public int getKeyId() {
-    return senderKeyStateStructure.getSenderKeyId();
+    return keyId;
   }
 
   public SenderChainKey getSenderChainKey() {
-    return new SenderChainKey(senderKeyStateStructure.getSenderChainKey().getIteration(),
-                              senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray());
+    return senderChainKey;
   }
 
   public void setSenderChainKey(SenderChainKey chainKey) {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(chainKey.getIteration())
-                                              .setSeed(ByteString.copyFrom(chainKey.getSeed()))
-                                              .build();
-
-    this.senderKeyStateStructure = senderKeyStateStructure.toBuilder()
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .build();
+    this.senderChainKey = chainKey;
   }
 
   public ECPublicKey getSigningKeyPublic() throws InvalidKeyException {
-    return new ECPublicKey(senderKeyStateStructure.getSenderSigningKey()
-                                                    .getPublic()
-                                                    .toByteArray());
+    if (decodedSigningKeyPublic == null) {
+      decodedSigningKeyPublic = new ECPublicKey(signingKeyPublic.toByteArray());
+    }
+
+    return decodedSigningKeyPublic;
   }
 
   public ECPrivateKey getSigningKeyPrivate() {
-    return new ECPrivateKey(senderKeyStateStructure.getSenderSigningKey()
-                                                           .getPrivate().toByteArray());
+    return new ECPrivateKey(signingKeyPrivate.isPresent() ? signingKeyPrivate.get().toByteArray() : new byte[0]);
   }
 
   public boolean hasSenderMessageKey(int iteration) {
-    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
-      if (senderMessageKey.getIteration() == iteration) return true;
-    }
-
-    return false;
+    return getSenderMessageKeys().containsKey(iteration);
   }
 
   public void addSenderMessageKey(SenderMessageKey senderMessageKey) {
-    SenderKeyStateStructure.SenderMessageKey senderMessageKeyStructure =
-        SenderKeyStateStructure.SenderMessageKey.newBuilder()
-                                                .setIteration(senderMessageKey.getIteration())
-                                                .setSeed(ByteString.copyFrom(senderMessageKey.getSeed()))
-                                                .build();
-
-    SenderKeyStateStructure.Builder builder = this.senderKeyStateStructure.toBuilder();
+    getSenderMessageKeys().put(senderMessageKey.getIteration(), ByteString.copyFrom(senderMessageKey.getSeed()));
+  }
 
-    builder.addSenderMessageKeys(senderMessageKeyStructure);
+  public SenderMessageKey removeSenderMessageKey(int iteration) {
+    ByteString seed = getSenderMessageKeys().remove(iteration);
 
-    if (builder.getSenderMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      builder.removeSenderMessageKeys(0);
+    if (seed != null) {
+      return new SenderMessageKey(iteration, seed.toByteArray());
+    } else {
+      return null;
     }
-
-    this.senderKeyStateStructure = builder.build();
   }
 
-  public SenderMessageKey removeSenderMessageKey(int iteration) {
-    List<SenderKeyStateStructure.SenderMessageKey>     keys     = new LinkedList<>(senderKeyStateStructure.getSenderMessageKeysList());
-    Iterator<SenderKeyStateStructure.SenderMessageKey> iterator = keys.iterator();
+  public SenderKeyStateStructure getStructure() {
+    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
+        SenderKeyStateStructure.SenderChainKey.newBuilder()
+                                              .setIteration(senderChainKey.getIteration())
+                                              .setSeed(ByteString.copyFrom(senderChainKey.getSeed()))
+                                              .build();
 
-    SenderKeyStateStructure.SenderMessageKey result = null;
+    SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
+        SenderKeyStateStructure.SenderSigningKey.newBuilder()
+                                                .setPublic(signingKeyPublic);
+
+    if (signingKeyPrivate.isPresent()) {
+      signingKeyStructure.setPrivate(signingKeyPrivate.get());
+    }
 
-    while (iterator.hasNext()) {
-      SenderKeyStateStructure.SenderMessageKey senderMessageKey = iterator.next();
+    SenderKeyStateStructure.Builder structure = SenderKeyStateStructure.newBuilder()
+                                                                       .setSenderKeyId(keyId)
+                                                                       .setSenderChainKey(senderChainKeyStructure)
+                                                                       .setSenderSigningKey(signingKeyStructure);
 
-      if (senderMessageKey.getIteration() == iteration) {
-        result = senderMessageKey;
-        iterator.remove();
-        break;
+    if (senderMessageKeys == null) {
+      structure.addAllSenderMessageKeys(serializedSenderMessageKeys);
+    } else {
+      for (Map.Entry<Integer, ByteString> entry : senderMessageKeys.entrySet()) {
+        structure.addSenderMessageKeys(SenderKeyStateStructure.SenderMessageKey.newBuilder()
+                                                                               .setIteration(entry.getKey())
+                                                                               .setSeed(entry.getValue()));
       }
     }
 
-    this.senderKeyStateStructure = this.senderKeyStateStructure.toBuilder()
-                                                               .clearSenderMessageKeys()
-                                                               .addAllSenderMessageKeys(keys)
-                                                               .build();
+    return structure.build();
+  }
 
-    if (result != null) {
-      return new SenderMessageKey(result.getIteration(), result.getSeed().toByteArray());
-    } else {
-      return null;
+  private SenderMessageKeys getSenderMessageKeys() {
+    if (senderMessageKeys == null) {
+      senderMessageKeys = new SenderMessageKeys();
+
+      for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : serializedSenderMessageKeys) {
+        senderMessageKeys.put(senderMessageKey.getIteration(), senderMessageKey.getSeed());
+      }
+
+      serializedSenderMessageKeys = null;
     }
+
+    return senderMessageKeys;
   }
 
-  public SenderKeyStateStructure getStructure() {
-    return senderKeyStateStructure;
+  /**
+   * Skipped message key seeds, indexed by iteration.  Iteration order is insertion order,
+   * and once more than {@link #MAX_MESSAGE_KEYS} are held the oldest is evicted.
+   */
+  private static class SenderMessageKeys extends LinkedHashMap<Integer, ByteString> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, ByteString> eldest) {
+      return size() > MAX_MESSAGE_KEYS;
+    }
   }
 }
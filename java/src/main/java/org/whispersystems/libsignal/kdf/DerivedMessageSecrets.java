@@ -6,10 +6,6 @@
 
 package org.whispersystems.libsignal.kdf;
 
-import org.whispersystems.libsignal.util.ByteUtil;
-
-import java.text.ParseException;
-
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -25,15 +21,21 @@ public class DerivedMessageSecrets {
   private final IvParameterSpec iv;
 
   public DerivedMessageSecrets(byte[] okm) {
-    try {
-      byte[][] keys = ByteUtil.split(okm, CIPHER_KEY_LENGTH, MAC_KEY_LENGTH, IV_LENGTH);
-
-      this.cipherKey = new SecretKeySpec(keys[0], "AES");
-      this.macKey    = new SecretKeySpec(keys[1], "HmacSHA256");
-      this.iv        = new IvParameterSpec(keys[2]);
-    } catch (ParseException e) {
-      throw new AssertionError(e);
+    this(okm, 0);
+  }
+
+  /**
+   * @param okm An array holding {@link #SIZE} bytes of derived key material.
+   * @param offset The offset of the key material in the array.
+   */
+  public DerivedMessageSecrets(byte[] okm, int offset) {
+    if (okm.length - offset < SIZE) {
+      throw new AssertionError("Key material too short: " + (okm.length - offset));
     }
+
+    this.cipherKey = new SecretKeySpec(okm, offset, CIPHER_KEY_LENGTH, "AES");
+    this.macKey    = new SecretKeySpec(okm, offset + CIPHER_KEY_LENGTH, MAC_KEY_LENGTH, "HmacSHA256");
+    this.iv        = new IvParameterSpec(okm, offset + CIPHER_KEY_LENGTH + MAC_KEY_LENGTH, IV_LENGTH);
   }
 
   public SecretKeySpec getCipherKey() {
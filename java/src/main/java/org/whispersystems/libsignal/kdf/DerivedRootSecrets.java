@@ -5,19 +5,31 @@
  */
 package org.whispersystems.libsignal.kdf;
 
-import org.whispersystems.libsignal.util.ByteUtil;
+import java.util.Arrays;
 
 public class DerivedRootSecrets {
 
-  public static final int SIZE = 64;
+  public  static final int SIZE       = 64;
+  private static final int KEY_LENGTH = 32;
 
   private final byte[] rootKey;
   private final byte[] chainKey;
 
   public DerivedRootSecrets(byte[] okm) {
-    byte[][] keys = ByteUtil.split(okm, 32, 32);
-    this.rootKey  = keys[0];
-    this.chainKey = keys[1];
+    this(okm, 0);
+  }
+
+  /**
+   * @param okm An array holding {@link #SIZE} bytes of derived key material.
+   * @param offset The offset of the key material in the array.
+   */
+  public DerivedRootSecrets(byte[] okm, int offset) {
+    if (okm.length - offset < SIZE) {
+      throw new AssertionError("Key material too short: " + (okm.length - offset));
+    }
+
+    this.rootKey  = Arrays.copyOfRange(okm, offset, offset + KEY_LENGTH);
+    this.chainKey = Arrays.copyOfRange(okm, offset + KEY_LENGTH, offset + SIZE);
   }
 
   public byte[] getRootKey() {
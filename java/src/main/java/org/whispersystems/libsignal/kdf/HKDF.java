@@ -6,77 +6,200 @@
 
 package org.whispersystems.libsignal.kdf;
 
-import java.io.ByteArrayOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.ShortBufferException;
 
+/**
+ * HKDF-SHA256 key derivation.
+ * <p>
+ * Instances are stateless and shared, so {@link #createFor(int)} never allocates.  The
+ * overloads that take an output buffer write the derived bytes straight into it, using
+ * the calling thread's HMAC from {@link CryptoPrimitives}.
+ */
 public abstract class HKDF {
 
-  private static final int HASH_OUTPUT_SIZE  = 32;
+  private static final int    HASH_OUTPUT_SIZE = 32;
+  private static final byte[] ZERO_SALT        = new byte[HASH_OUTPUT_SIZE];
+
+  private static final HKDF V2 = new HKDFv2();
+  private static final HKDF V3 = new HKDFv3();
+
+  private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+    @Override
+    protected Workspace initialValue() {
+      return new Workspace();
+    }
+  };
 
   public static HKDF createFor(int messageVersion) {
     switch (messageVersion) {
-      case 2:  return new HKDFv2();
-      case 3:  return new HKDFv3();
+      case 2:  return V2;
+      case 3:  return V3;
       default: throw new AssertionError("Unknown version: " + messageVersion);
     }
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] info, int outputLength) {
-    byte[] salt = new byte[HASH_OUTPUT_SIZE];
-    return deriveSecrets(inputKeyMaterial, salt, info, outputLength);
+    return deriveSecrets(inputKeyMaterial, ZERO_SALT, info, outputLength);
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, int outputLength) {
-    byte[] prk = extract(salt, inputKeyMaterial);
-    return expand(prk, info, outputLength);
+    byte[] output = new byte[outputLength];
+    deriveSecrets(inputKeyMaterial, salt, info, output, 0, outputLength);
+    return output;
   }
 
-  private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(salt, "HmacSHA256"));
-      return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
+  /**
+   * Derives secrets with an all-zero salt into part of an existing array.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param info The context info, or null.
+   * @param output The array to write to.
+   * @param offset The offset in the array to start writing at.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] info, byte[] output, int offset, int outputLength) {
+    deriveSecrets(inputKeyMaterial, ZERO_SALT, info, output, offset, outputLength);
+  }
+
+  /**
+   * Derives secrets into part of an existing array.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param salt The salt.
+   * @param info The context info, or null.
+   * @param output The array to write to.
+   * @param offset The offset in the array to start writing at.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info,
+                            byte[] output, int offset, int outputLength)
+  {
+    if (offset < 0 || outputLength < 0 || output.length - offset < outputLength) {
+      throw new IndexOutOfBoundsException("Output too short: " + output.length + " for " + outputLength + " at " + offset);
     }
+
+    Workspace workspace = WORKSPACE.get();
+
+    extract(workspace, salt, inputKeyMaterial);
+    expand(workspace, info, output, offset, outputLength);
   }
 
-  private byte[] expand(byte[] prk, byte[] info, int outputSize) {
-    try {
-      int                   iterations     = (int) Math.ceil((double) outputSize / (double) HASH_OUTPUT_SIZE);
-      byte[]                mixin          = new byte[0];
-      ByteArrayOutputStream results        = new ByteArrayOutputStream();
-      int                   remainingBytes = outputSize;
+  /**
+   * Derives secrets with an all-zero salt into a buffer, starting at its position.
+   * The position is advanced past the derived bytes.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param info The context info, or null.
+   * @param output The buffer to write to.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] info, ByteBuffer output, int outputLength) {
+    deriveSecrets(inputKeyMaterial, ZERO_SALT, info, output, outputLength);
+  }
+
+  /**
+   * Derives secrets into a buffer, starting at its position.  The position is advanced
+   * past the derived bytes.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param salt The salt.
+   * @param info The context info, or null.
+   * @param output The buffer to write to.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, ByteBuffer output, int outputLength) {
+    if (output.remaining() < outputLength) {
+      throw new IndexOutOfBoundsException("Output too short: " + output.remaining() + " for " + outputLength);
+    }
+
+    if (output.hasArray()) {
+      deriveSecrets(inputKeyMaterial, salt, info, output.array(), output.arrayOffset() + output.position(), outputLength);
+      output.position(output.position() + outputLength);
+      return;
+    }
 
-      for (int i= getIterationStartOffset();i<iterations + getIterationStartOffset();i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    Workspace workspace = WORKSPACE.get();
+    byte[]    scratch   = workspace.getOutput(outputLength);
+
+    extract(workspace, salt, inputKeyMaterial);
+    expand(workspace, info, scratch, 0, outputLength);
+
+    output.put(scratch, 0, outputLength);
+    Arrays.fill(scratch, 0, outputLength, (byte)0);
+  }
+
+  private void extract(Workspace workspace, byte[] salt, byte[] inputKeyMaterial) {
+    Mac mac = CryptoPrimitives.getHmacSha256(salt);
+    mac.update(inputKeyMaterial);
+    doFinal(mac, workspace.prk);
+  }
+
+  /**
+   * Each block is the MAC of the previous block, the info and a counter.  The PRK and the
+   * last block are cleared once the output has been written.
+   */
+  private void expand(Workspace workspace, byte[] info, byte[] output, int offset, int outputSize) {
+    byte[] block          = workspace.block;
+    int    remainingBytes = outputSize;
+    int    i              = getIterationStartOffset();
+    Mac    mac            = CryptoPrimitives.getHmacSha256(workspace.prk);
+
+    try {
+      for (boolean first = true;remainingBytes > 0;first = false) {
+        if (!first) {
+          mac.update(block);
+        }
 
-        mac.update(mixin);
         if (info != null) {
           mac.update(info);
         }
-        mac.update((byte)i);
 
-        byte[] stepResult = mac.doFinal();
-        int    stepSize   = Math.min(remainingBytes, stepResult.length);
+        mac.update((byte)i++);
+        doFinal(mac, block);
 
-        results.write(stepResult, 0, stepSize);
+        int stepSize = Math.min(remainingBytes, HASH_OUTPUT_SIZE);
 
-        mixin          = stepResult;
+        System.arraycopy(block, 0, output, offset, stepSize);
+
+        offset         += stepSize;
         remainingBytes -= stepSize;
       }
+    } finally {
+      Arrays.fill(workspace.prk, (byte)0);
+      Arrays.fill(block, (byte)0);
+    }
+  }
 
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+  private static void doFinal(Mac mac, byte[] output) {
+    try {
+      mac.doFinal(output, 0);
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
   protected abstract int getIterationStartOffset();
 
+  /**
+   * A thread's buffers for the PRK, the current block, and output bound for a buffer
+   * without a backing array.  All three are cleared after each derivation.
+   */
+  private static class Workspace {
+    private final byte[] prk   = new byte[HASH_OUTPUT_SIZE];
+    private final byte[] block = new byte[HASH_OUTPUT_SIZE];
+
+    private byte[] output = new byte[128];
+
+    private byte[] getOutput(int length) {
+      if (output.length < length) output = new byte[length];
+      return output;
+    }
+  }
+
 }
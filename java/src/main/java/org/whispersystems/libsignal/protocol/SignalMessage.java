@@ -14,9 +14,9 @@ import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 
 import javax.crypto.Mac;
@@ -123,18 +123,13 @@ public class SignalMessage implements CiphertextMessage {
                         ECPublicKey receiverECPublicKey ,
                         SecretKeySpec macKey, byte[] serialized)
   {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
+    Mac mac = CryptoPrimitives.getHmacSha256(macKey);
 
-      mac.update(senderECPublicKey.getBytes());
-      mac.update(receiverECPublicKey.getBytes());
+    mac.update(senderECPublicKey.getBytes());
+    mac.update(receiverECPublicKey.getBytes());
 
-      byte[] fullMac = mac.doFinal(serialized);
-      return ByteUtil.trim(fullMac, MAC_LENGTH);
-    } catch (NoSuchAlgorithmException | java.security.InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    byte[] fullMac = mac.doFinal(serialized);
+    return ByteUtil.trim(fullMac, MAC_LENGTH);
   }
 
   @Override
@@ -8,17 +8,18 @@ package org.whispersystems.libsignal.ratchet;
 
 import org.whispersystems.libsignal.kdf.DerivedMessageSecrets;
 import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.Pair;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 public class ChainKey {
 
   private static final byte[] MESSAGE_KEY_SEED = {0x01};
   private static final byte[] CHAIN_KEY_SEED   = {0x02};
+  private static final byte[] MESSAGE_KEYS     = "WhisperMessageKeys".getBytes();
 
   private final HKDF   kdf;
   private final byte[] key;
@@ -44,21 +45,35 @@ public class ChainKey {
   }
 
   public MessageKeys getMessageKeys() {
-    byte[]                inputKeyMaterial = getBaseMaterial(MESSAGE_KEY_SEED);
-    byte[]                keyMaterialBytes = kdf.deriveSecrets(inputKeyMaterial, "WhisperMessageKeys".getBytes(), DerivedMessageSecrets.SIZE);
-    DerivedMessageSecrets keyMaterial      = new DerivedMessageSecrets(keyMaterialBytes);
+    return getMessageKeys(getBaseMaterial(MESSAGE_KEY_SEED));
+  }
+
+  /**
+   * Derives this chain key's message keys and the chain key that follows it, keying the
+   * HMAC once for both rather than once for each.
+   */
+  public Pair<MessageKeys, ChainKey> getMessageKeysAndNextChainKey() {
+    Mac    mac              = CryptoPrimitives.getHmacSha256(key);
+    byte[] inputKeyMaterial = mac.doFinal(MESSAGE_KEY_SEED);
+    byte[] nextKey          = mac.doFinal(CHAIN_KEY_SEED);
+
+    return new Pair<>(getMessageKeys(inputKeyMaterial), new ChainKey(kdf, nextKey, index + 1));
+  }
+
+  private MessageKeys getMessageKeys(byte[] inputKeyMaterial) {
+    byte[] keyMaterialBytes = new byte[DerivedMessageSecrets.SIZE];
+
+    kdf.deriveSecrets(inputKeyMaterial, MESSAGE_KEYS, keyMaterialBytes, 0, DerivedMessageSecrets.SIZE);
+
+    DerivedMessageSecrets keyMaterial = new DerivedMessageSecrets(keyMaterialBytes, 0);
+
+    Arrays.fill(inputKeyMaterial, (byte)0);
+    Arrays.fill(keyMaterialBytes, (byte)0);
 
     return new MessageKeys(keyMaterial.getCipherKey(), keyMaterial.getMacKey(), keyMaterial.getIv(), index);
   }
 
   private byte[] getBaseMaterial(byte[] seed) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return CryptoPrimitives.getHmacSha256(key).doFinal(seed);
   }
 }
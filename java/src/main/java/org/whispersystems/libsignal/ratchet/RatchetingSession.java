@@ -10,7 +10,6 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.kdf.HKDF;
-import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.util.ByteUtil;
@@ -59,7 +58,7 @@ public class RatchetingSession {
       sessionState.setRemoteIdentityKey(parameters.getTheirIdentityKey());
       sessionState.setLocalIdentityKey(parameters.getOurIdentityKey().getPublicKey());
 
-      ECKeyPair             sendingRatchetKey = Curve.generateKeyPair();
+      ECKeyPair             sendingRatchetKey = Curve.generateEphemeralKeyPair();
       ByteArrayOutputStream secrets           = new ByteArrayOutputStream();
 
       secrets.write(getDiscontinuityBytes());
@@ -128,7 +127,7 @@ public class RatchetingSession {
   }
 
   private static DerivedKeys calculateDerivedKeys(byte[] masterSecret) {
-    HKDF     kdf                = new HKDFv3();
+    HKDF     kdf                = HKDF.createFor(3);
     byte[]   derivedSecretBytes = kdf.deriveSecrets(masterSecret, "WhisperText".getBytes(), 64);
     byte[][] derivedSecrets     = ByteUtil.split(derivedSecretBytes, 32, 32);
 
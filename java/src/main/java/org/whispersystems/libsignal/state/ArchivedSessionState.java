@@ -0,0 +1,149 @@
+package org.whispersystems.libsignal.state;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.logging.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
+
+/**
+ * An archived session in a {@link SessionRecord}, held as its serialized form until
+ * something needs the full {@link SessionState}.
+ * <p>
+ * The few fields needed to pick an archived session out of a record (its version,
+ * Alice's base key and the ratchet keys of its receiver chains) are scanned straight
+ * from the serialized form, without building the state.  An entry that was never
+ * parsed is written back byte-for-byte when the record is serialized.
+ */
+class ArchivedSessionState {
+
+  private static final String TAG = ArchivedSessionState.class.getSimpleName();
+
+  private static final int SESSION_VERSION    = SessionStructure.SESSIONVERSION_FIELD_NUMBER;
+  private static final int RECEIVER_CHAINS    = SessionStructure.RECEIVERCHAINS_FIELD_NUMBER;
+  private static final int ALICE_BASE_KEY     = SessionStructure.ALICEBASEKEY_FIELD_NUMBER;
+  private static final int SENDER_RATCHET_KEY = SessionStructure.Chain.SENDERRATCHETKEY_FIELD_NUMBER;
+
+  private ByteString   serialized;
+  private SessionState state;
+
+  private boolean           scanned;
+  private int               sessionVersion;
+  private byte[]            aliceBaseKey;
+  private List<ECPublicKey> receiverChainRatchetKeys;
+
+  ArchivedSessionState(SessionState state) {
+    this.state = state;
+  }
+
+  ArchivedSessionState(ByteString serialized) {
+    this.serialized = serialized;
+  }
+
+  ArchivedSessionState(ArchivedSessionState copy) {
+    this.serialized = copy.serialized;
+    this.state      = copy.state != null ? new SessionState(copy.state) : null;
+  }
+
+  /**
+   * @return the session state, parsing it first if it has not been accessed yet.
+   */
+  SessionState getState() {
+    if (state == null) {
+      try {
+        state = new SessionState(SessionStructure.parseFrom(serialized));
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        state = new SessionState();
+      }
+
+      serialized               = null;
+      aliceBaseKey             = null;
+      receiverChainRatchetKeys = null;
+    }
+
+    return state;
+  }
+
+  /**
+   * @return the state as it was loaded, or null if it has since been parsed.
+   */
+  ByteString getSerialized() {
+    return serialized;
+  }
+
+  boolean isSessionState(int version, byte[] aliceBaseKey) {
+    if (state != null) {
+      return state.getSessionVersion() == version && Arrays.equals(aliceBaseKey, state.getAliceBaseKey());
+    }
+
+    scan();
+    return sessionVersion == version && Arrays.equals(aliceBaseKey, this.aliceBaseKey);
+  }
+
+  boolean hasReceiverChain(ECPublicKey senderRatchetKey) {
+    return getReceiverChainRatchetKeys().contains(senderRatchetKey);
+  }
+
+  Collection<ECPublicKey> getReceiverChainRatchetKeys() {
+    if (state != null) {
+      return state.getReceiverChainRatchetKeys();
+    }
+
+    scan();
+    return receiverChainRatchetKeys;
+  }
+
+  private void scan() {
+    if (scanned) return;
+
+    sessionVersion           = 0;
+    aliceBaseKey             = new byte[0];
+    receiverChainRatchetKeys = new LinkedList<>();
+
+    try {
+      CodedInputStream input = serialized.newCodedInput();
+      int              tag;
+
+      while ((tag = input.readTag()) != 0) {
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case SESSION_VERSION: sessionVersion = input.readUInt32();                  break;
+          case ALICE_BASE_KEY:  aliceBaseKey   = input.readBytes().toByteArray();     break;
+          case RECEIVER_CHAINS: scanReceiverChain(input.readBytes().newCodedInput()); break;
+          default:              input.skipField(tag);                                 break;
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    scanned = true;
+  }
+
+  private void scanReceiverChain(CodedInputStream input) throws IOException {
+    int tag;
+
+    while ((tag = input.readTag()) != 0) {
+      if (WireFormat.getTagFieldNumber(tag) != SENDER_RATCHET_KEY) {
+        input.skipField(tag);
+        continue;
+      }
+
+      try {
+        receiverChainRatchetKeys.add(new ECPublicKey(input.readBytes().toByteArray()));
+      } catch (InvalidKeyException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+}
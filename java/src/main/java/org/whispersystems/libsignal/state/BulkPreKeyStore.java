@@ -0,0 +1,20 @@
+package org.whispersystems.libsignal.state;
+
+import java.util.List;
+
+/**
+ * A {@link PreKeyStore} that can store many pre-keys in a single operation.
+ * Implementing this is optional, but lets bulk provisioning with
+ * {@link org.whispersystems.libsignal.util.BulkPreKeyGenerator} avoid a store round
+ * trip per pre-key.
+ */
+public interface BulkPreKeyStore extends PreKeyStore {
+
+  /**
+   * Store a batch of local PreKeyRecords, each under its own ID.
+   *
+   * @param records The PreKeyRecords to store.
+   */
+  public void storePreKeys(List<PreKeyRecord> records);
+
+}
@@ -0,0 +1,33 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link SessionStore} that can load and store many sessions in a single operation.
+ * Implementing this is optional, but lets fan-out operations such as
+ * {@link org.whispersystems.libsignal.MultiRecipientEncryptor} avoid a store round trip
+ * per address.
+ */
+public interface BulkSessionStore extends SessionStore {
+
+  /**
+   * Returns copies of the {@link SessionRecord}s for a set of addresses, with the same
+   * semantics as {@link #loadSession(SignalProtocolAddress)} for each one.
+   *
+   * @param addresses The addresses of the remote clients.
+   * @return a SessionRecord for every address, which is a new SessionRecord for any
+   *         address that does not currently have a session.
+   */
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses);
+
+  /**
+   * Commit to storage the {@link SessionRecord}s for a set of addresses.
+   *
+   * @param records The current SessionRecord for each remote client.
+   */
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records);
+
+}
@@ -5,16 +5,31 @@
  */
 package org.whispersystems.libsignal.state;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+
 import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.RecordStructure;
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
 /**
  * A SessionRecord encapsulates the state of an ongoing session.
+ * <p>
+ * Only the current session is parsed when a record is loaded.  Archived sessions are
+ * kept in serialized form until they are first accessed, and any that never are
+ * are written back unchanged when the record is serialized.
  *
  * @author Moxie Marlinspike
  */
@@ -22,9 +37,15 @@ public class SessionRecord {
 
   private static final int ARCHIVED_STATES_MAX_LENGTH = 40;
 
-  private SessionState             sessionState   = new SessionState();
-  private LinkedList<SessionState> previousStates = new LinkedList<>();
-  private boolean                  fresh          = false;
+  private static final int CURRENT_SESSION   = RecordStructure.CURRENTSESSION_FIELD_NUMBER;
+  private static final int PREVIOUS_SESSIONS = RecordStructure.PREVIOUSSESSIONS_FIELD_NUMBER;
+
+  private SessionState                     sessionState   = new SessionState();
+  private final List<ArchivedSessionState> previousStates = new ArrayList<>();
+  private final List<SessionState>         previousView   = new PreviousStates();
+  private boolean                          fresh          = false;
+
+  private Map<ECPublicKey, ArchivedSessionState> receiverChainIndex;
 
   public SessionRecord() {
     this.fresh = true;
@@ -35,14 +56,47 @@ public class SessionRecord {
     this.fresh        = false;
   }
 
+  /**
+   * Creates an independent copy of a record.  Archived sessions that have not been
+   * parsed are shared, since their serialized form is never modified.
+   */
+  public SessionRecord(SessionRecord copy) {
+    this(copy, copy.fresh);
+  }
+
+  /**
+   * Creates an independent copy of a record, with the given {@link #isFresh()} flag.
+   * Stores that hold records without serializing them should pass false, as a record
+   * loaded from storage is never fresh.
+   */
+  public SessionRecord(SessionRecord copy, boolean fresh) {
+    this.sessionState = new SessionState(copy.sessionState);
+    this.fresh        = fresh;
+
+    for (ArchivedSessionState previousState : copy.previousStates) {
+      this.previousStates.add(new ArchivedSessionState(previousState));
+    }
+  }
+
   public SessionRecord(byte[] serialized) throws IOException {
-    RecordStructure record = RecordStructure.parseFrom(serialized);
-    this.sessionState = new SessionState(record.getCurrentSession());
-    this.fresh        = false;
+    CodedInputStream         input          = CodedInputStream.newInstance(serialized);
+    SessionStructure.Builder currentSession = SessionStructure.newBuilder();
+    int                      tag;
 
-    for (SessionStructure previousStructure : record.getPreviousSessionsList()) {
-      previousStates.add(new SessionState(previousStructure));
+    while ((tag = input.readTag()) != 0) {
+      if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        input.skipField(tag);
+      } else if (WireFormat.getTagFieldNumber(tag) == CURRENT_SESSION) {
+        input.readMessage(currentSession, ExtensionRegistryLite.getEmptyRegistry());
+      } else if (WireFormat.getTagFieldNumber(tag) == PREVIOUS_SESSIONS) {
+        previousStates.add(new ArchivedSessionState(input.readBytes()));
+      } else {
+        input.skipField(tag);
+      }
     }
+
+    this.sessionState = new SessionState(currentSession.build());
+    this.fresh        = false;
   }
 
   public boolean hasSessionState(int version, byte[] aliceBaseKey) {
@@ -52,10 +106,8 @@ public class SessionRecord {
       return true;
     }
 
-    for (SessionState state : previousStates) {
-      if (state.getSessionVersion() == version &&
-          Arrays.equals(aliceBaseKey, state.getAliceBaseKey()))
-      {
+    for (ArchivedSessionState state : previousStates) {
+      if (state.isSessionState(version, aliceBaseKey)) {
         return true;
       }
     }
@@ -71,11 +123,46 @@ public class SessionRecord {
    * @return the list of all currently maintained "previous" session states.
    */
   public List<SessionState> getPreviousSessionStates() {
-    return previousStates;
+    return previousView;
+  }
+
+  /**
+   * Returns the archived session state that holds a receiver chain for a sender ratchet key,
+   * so that a message can be routed straight to the one state able to decrypt it.
+   * <p>
+   * The index behind this is built on first use, and discarded whenever the archived
+   * states are changed through this record or {@link #getPreviousSessionStates()}.  A
+   * state whose receiver chains were modified in place after the index was built may be
+   * missed, so callers should still fall back to trying each state.
+   *
+   * @param senderRatchetKey The sender ratchet key of the message.
+   * @return the archived state, or null if none is indexed for that key.
+   */
+  public SessionState getPreviousSessionState(ECPublicKey senderRatchetKey) {
+    if (receiverChainIndex == null) {
+      receiverChainIndex = new HashMap<>();
+
+      for (ArchivedSessionState state : previousStates) {
+        for (ECPublicKey ratchetKey : state.getReceiverChainRatchetKeys()) {
+          if (!receiverChainIndex.containsKey(ratchetKey)) {
+            receiverChainIndex.put(ratchetKey, state);
+          }
+        }
+      }
+    }
+
+    ArchivedSessionState state = receiverChainIndex.get(senderRatchetKey);
+
+    if (state == null || !state.hasReceiverChain(senderRatchetKey)) {
+      return null;
+    }
+
+    return state.getState();
   }
 
   public void removePreviousSessionStates() {
     previousStates.clear();
+    receiverChainIndex = null;
   }
 
   public boolean isFresh() {
@@ -92,11 +179,12 @@ public class SessionRecord {
   }
 
   public void promoteState(SessionState promotedState) {
-    this.previousStates.addFirst(sessionState);
-    this.sessionState = promotedState;
+    this.previousStates.add(0, new ArchivedSessionState(sessionState));
+    this.sessionState       = promotedState;
+    this.receiverChainIndex = null;
 
     if (previousStates.size() > ARCHIVED_STATES_MAX_LENGTH) {
-      previousStates.removeLast();
+      previousStates.remove(previousStates.size() - 1);
     }
   }
 
@@ -108,18 +196,113 @@ public class SessionRecord {
    * @return a serialized version of the current SessionRecord.
    */
   public byte[] serialize() {
-    List<SessionStructure> previousStructures = new LinkedList<>();
+    SessionStructure   currentSession   = sessionState.getStructure();
+    SessionStructure[] previousSessions = new SessionStructure[previousStates.size()];
+    int                size             = CodedOutputStream.computeMessageSize(CURRENT_SESSION, currentSession);
+
+    for (int i=0;i<previousSessions.length;i++) {
+      ArchivedSessionState previousState = previousStates.get(i);
 
-    for (SessionState previousState : previousStates) {
-      previousStructures.add(previousState.getStructure());
+      if (previousState.getSerialized() != null) {
+        size += CodedOutputStream.computeBytesSize(PREVIOUS_SESSIONS, previousState.getSerialized());
+      } else {
+        previousSessions[i] = previousState.getState().getStructure();
+        size += CodedOutputStream.computeMessageSize(PREVIOUS_SESSIONS, previousSessions[i]);
+      }
     }
 
-    RecordStructure record = RecordStructure.newBuilder()
-                                            .setCurrentSession(sessionState.getStructure())
-                                            .addAllPreviousSessions(previousStructures)
-                                            .build();
+    try {
+      byte[]            result = new byte[size];
+      CodedOutputStream output = CodedOutputStream.newInstance(result);
+
+      output.writeMessage(CURRENT_SESSION, currentSession);
 
-    return record.toByteArray();
+      for (int i=0;i<previousSessions.length;i++) {
+        if (previousSessions[i] == null) output.writeBytes(PREVIOUS_SESSIONS, previousStates.get(i).getSerialized());
+        else                             output.writeMessage(PREVIOUS_SESSIONS, previousSessions[i]);
+      }
+
+      output.checkNoSpaceLeft();
+      return result;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
   }
 
+  /**
+   * A view of the archived sessions as {@link SessionState}s, which parses each one only
+   * when it is read.  Lookups by identity never need to parse an entry, since a state
+   * that has not been parsed cannot be held by anyone.
+   */
+  private class PreviousStates extends AbstractList<SessionState> {
+    @Override
+    public SessionState get(int index) {
+      return previousStates.get(index).getState();
+    }
+
+    @Override
+    public int size() {
+      return previousStates.size();
+    }
+
+    @Override
+    public SessionState set(int index, SessionState state) {
+      receiverChainIndex = null;
+      return previousStates.set(index, new ArchivedSessionState(state)).getState();
+    }
+
+    @Override
+    public void add(int index, SessionState state) {
+      modCount++;
+      receiverChainIndex = null;
+      previousStates.add(index, new ArchivedSessionState(state));
+    }
+
+    @Override
+    public SessionState remove(int index) {
+      modCount++;
+      receiverChainIndex = null;
+      return previousStates.remove(index).getState();
+    }
+
+    @Override
+    public boolean remove(Object state) {
+      int index = indexOf(state);
+
+      if (index == -1) {
+        return false;
+      }
+
+      previousStates.remove(index);
+      modCount++;
+      receiverChainIndex = null;
+
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      modCount++;
+      receiverChainIndex = null;
+      previousStates.clear();
+    }
+
+    @Override
+    public boolean contains(Object state) {
+      return indexOf(state) != -1;
+    }
+
+    @Override
+    public int indexOf(Object state) {
+      for (int i=0;i<previousStates.size();i++) {
+        ArchivedSessionState entry = previousStates.get(i);
+
+        if (entry.getSerialized() == null && entry.getState() == state) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+  }
 }
@@ -21,130 +21,177 @@ import org.whispersystems.libsignal.ratchet.RootKey;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingKeyExchange;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingPreKey;
-import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
+/**
+ * The state of a single ratcheting session.
+ * <p>
+ * The state is held as a plain mutable object graph with decoded keys, so that
+ * stepping the ratchet only touches the fields that actually change.  It is converted
+ * from a {@link SessionStructure} when loaded, and back into one only when serialized.
+ */
 public class SessionState {
 
-  private static final int MAX_MESSAGE_KEYS = 2000;
+  private static final String TAG = "SessionRecordV2";
+
+  private static final int MAX_MESSAGE_KEYS    = 2000;
+  private static final int MAX_RECEIVER_CHAINS = 5;
 
-  private SessionStructure sessionStructure;
+  private static final byte[] EMPTY = new byte[0];
+
+  private int                              sessionVersion;
+  private ECPublicKey                      localIdentityKey;
+  private ECPublicKey                      remoteIdentityKey;
+  private byte[]                           rootKey;
+  private int                              previousCounter;
+  private SenderChain                      senderChain;
+  private ReceiverChains                   receiverChains;
+  private PendingKeyExchange               pendingKeyExchange;
+  private UnacknowledgedPreKeyMessageItems pendingPreKey;
+  private boolean                          needsRefresh;
+  private byte[]                           aliceBaseKey;
 
   public SessionState() {
-    this.sessionStructure = SessionStructure.newBuilder().build();
+    this.rootKey        = EMPTY;
+    this.receiverChains = new ReceiverChains();
   }
 
   public SessionState(SessionStructure sessionStructure) {
-    this.sessionStructure = sessionStructure;
+    this.sessionVersion     = sessionStructure.getSessionVersion();
+    this.localIdentityKey   = decodePublicKey(sessionStructure.hasLocalIdentityPublic(), sessionStructure.getLocalIdentityPublic());
+    this.remoteIdentityKey  = decodePublicKey(sessionStructure.hasRemoteIdentityPublic(), sessionStructure.getRemoteIdentityPublic());
+    this.rootKey            = sessionStructure.getRootKey().toByteArray();
+    this.previousCounter    = sessionStructure.getPreviousCounter();
+    this.senderChain        = sessionStructure.hasSenderChain() ? new SenderChain(sessionStructure.getSenderChain()) : null;
+    this.receiverChains     = new ReceiverChains();
+    this.pendingKeyExchange = sessionStructure.hasPendingKeyExchange() ? sessionStructure.getPendingKeyExchange() : null;
+    this.pendingPreKey      = sessionStructure.hasPendingPreKey() ? decodePendingPreKey(sessionStructure.getPendingPreKey()) : null;
+    this.needsRefresh       = sessionStructure.getNeedsRefresh();
+    this.aliceBaseKey       = sessionStructure.hasAliceBaseKey() ? sessionStructure.getAliceBaseKey().toByteArray() : null;
+
+    for (Chain chain : sessionStructure.getReceiverChainsList()) {
+      try {
+        ReceiverChain receiverChain = new ReceiverChain(chain);
+        this.receiverChains.put(receiverChain.senderRatchetKey, receiverChain);
+      } catch (InvalidKeyException e) {
+        Log.w(TAG, e);
+      }
+    }
   }
 
   public SessionState(SessionState copy) {
-    this.sessionStructure = copy.sessionStructure.toBuilder().build();
+    this.sessionVersion     = copy.sessionVersion;
+    this.localIdentityKey   = copy.localIdentityKey;
+    this.remoteIdentityKey  = copy.remoteIdentityKey;
+    this.rootKey            = copy.rootKey;
+    this.previousCounter    = copy.previousCounter;
+    this.senderChain        = copy.senderChain != null ? new SenderChain(copy.senderChain) : null;
+    this.receiverChains     = new ReceiverChains();
+    this.pendingKeyExchange = copy.pendingKeyExchange;
+    this.pendingPreKey      = copy.pendingPreKey;
+    this.needsRefresh       = copy.needsRefresh;
+    this.aliceBaseKey       = copy.aliceBaseKey;
+
+    for (ReceiverChain receiverChain : copy.receiverChains.values()) {
+      this.receiverChains.put(receiverChain.senderRatchetKey, new ReceiverChain(receiverChain));
+    }
   }
 
   public SessionStructure getStructure() {
-    return sessionStructure;
+    SessionStructure.Builder structure = SessionStructure.newBuilder();
+
+    if (sessionVersion != 0)        structure.setSessionVersion(sessionVersion);
+    if (localIdentityKey != null)   structure.setLocalIdentityPublic(ByteString.copyFrom(localIdentityKey.getBytes()));
+    if (remoteIdentityKey != null)  structure.setRemoteIdentityPublic(ByteString.copyFrom(remoteIdentityKey.getBytes()));
+    if (rootKey.length != 0)        structure.setRootKey(ByteString.copyFrom(rootKey));
+    if (previousCounter != 0)       structure.setPreviousCounter(previousCounter);
+    if (senderChain != null)        structure.setSenderChain(senderChain.getStructure());
+    if (pendingKeyExchange != null) structure.setPendingKeyExchange(pendingKeyExchange);
+    if (pendingPreKey != null)      structure.setPendingPreKey(encodePendingPreKey(pendingPreKey));
+    if (needsRefresh)               structure.setNeedsRefresh(true);
+    if (aliceBaseKey != null)       structure.setAliceBaseKey(ByteString.copyFrom(aliceBaseKey));
+
+    for (ReceiverChain receiverChain : receiverChains.values()) {
+      structure.addReceiverChains(receiverChain.getStructure());
+    }
+
+    return structure.build();
   }
 
   public byte[] getAliceBaseKey() {
-    return this.sessionStructure.getAliceBaseKey().toByteArray();
+    return aliceBaseKey != null ? aliceBaseKey : EMPTY;
   }
 
   public void setAliceBaseKey(byte[] aliceBaseKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setAliceBaseKey(ByteString.copyFrom(aliceBaseKey))
-                                                 .build();
+    this.aliceBaseKey = aliceBaseKey;
   }
 
   public void setSessionVersion(int version) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setSessionVersion(version)
-                                                 .build();
+    this.sessionVersion = version;
   }
 
   public int getSessionVersion() {
-    int sessionVersion = this.sessionStructure.getSessionVersion();
-
     if (sessionVersion == 0) return 2;
     else                     return sessionVersion;
   }
 
   public void setRemoteIdentityKey(ECPublicKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRemoteIdentityPublic(ByteString.copyFrom(identityKey.getBytes()))
-                                                 .build();
+    this.remoteIdentityKey = identityKey;
   }
 
   public void setLocalIdentityKey(ECPublicKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setLocalIdentityPublic(ByteString.copyFrom(identityKey.getBytes()))
-                                                 .build();
+    this.localIdentityKey = identityKey;
   }
 
   public ECPublicKey getRemoteIdentityKey() {
-    try {
-      if (!this.sessionStructure.hasRemoteIdentityPublic()) {
-        return null;
-      }
-
-      return new ECPublicKey(this.sessionStructure.getRemoteIdentityPublic().toByteArray());
-    } catch (InvalidKeyException e) {
-      Log.w("SessionRecordV2", e);
-      return null;
-    }
+    return remoteIdentityKey;
   }
 
   public ECPublicKey getLocalIdentityKey() {
-    try {
-      return new ECPublicKey(this.sessionStructure.getLocalIdentityPublic().toByteArray());
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+    if (localIdentityKey == null) {
+      throw new AssertionError("No local identity key!");
     }
+
+    return localIdentityKey;
   }
 
   public int getPreviousCounter() {
-    return sessionStructure.getPreviousCounter();
+    return previousCounter;
   }
 
   public void setPreviousCounter(int previousCounter) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPreviousCounter(previousCounter)
-                                                 .build();
+    this.previousCounter = previousCounter;
   }
 
   public RootKey getRootKey() {
-    return new RootKey(HKDF.createFor(getSessionVersion()),
-                       this.sessionStructure.getRootKey().toByteArray());
+    return new RootKey(HKDF.createFor(getSessionVersion()), rootKey);
   }
 
   public void setRootKey(RootKey rootKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRootKey(ByteString.copyFrom(rootKey.getKeyBytes()))
-                                                 .build();
+    this.rootKey = rootKey.getKeyBytes();
   }
 
   public ECPublicKey getSenderRatchetKey() {
-    try {
-      return new ECPublicKey(sessionStructure.getSenderChain().getSenderRatchetKey().toByteArray());
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+    if (senderChain == null || senderChain.ratchetKey == null) {
+      throw new AssertionError("No sender ratchet key!");
     }
+
+    return senderChain.ratchetKey;
   }
 
   public ECKeyPair getSenderRatchetKeyPair() {
     ECPublicKey  publicKey  = getSenderRatchetKey();
-    ECPrivateKey privateKey = new ECPrivateKey(sessionStructure.getSenderChain()
-                                                                       .getSenderRatchetKeyPrivate()
-                                                                       .toByteArray());
+    ECPrivateKey privateKey = new ECPrivateKey(senderChain.ratchetKeyPrivate);
 
     return new ECKeyPair(publicKey, privateKey);
   }
@@ -154,189 +201,103 @@ public class SessionState {
   }
 
   public boolean hasSenderChain() {
-    return sessionStructure.hasSenderChain();
+    return senderChain != null;
   }
 
-  private Pair<Chain,Integer> getReceiverChain(ECPublicKey senderEphemeral) {
-    List<Chain> receiverChains = sessionStructure.getReceiverChainsList();
-    int         index          = 0;
-
-    for (Chain receiverChain : receiverChains) {
-      try {
-        ECPublicKey chainSenderRatchetKey = new ECPublicKey(receiverChain.getSenderRatchetKey().toByteArray());
-
-        if (chainSenderRatchetKey.equals(senderEphemeral)) {
-          return new Pair<>(receiverChain,index);
-        }
-      } catch (InvalidKeyException e) {
-        Log.w("SessionRecordV2", e);
-      }
-
-      index++;
-    }
+  /**
+   * Returns the receiver chain for a sender ratchet key.  The chain is a live view
+   * of this state, so callers that need to read and update it several times can
+   * look it up once and work on the returned handle.
+   *
+   * @param senderEphemeral The sender ratchet key of the chain.
+   * @return the receiver chain, or null if there is none.
+   */
+  public ReceiverChain getReceiverChain(ECPublicKey senderEphemeral) {
+    return receiverChains.get(senderEphemeral);
+  }
 
-    return null;
+  /**
+   * @return the sender ratchet keys of all receiver chains in this state.
+   */
+  public Set<ECPublicKey> getReceiverChainRatchetKeys() {
+    return Collections.unmodifiableSet(receiverChains.keySet());
   }
 
   public ChainKey getReceiverChainKey(ECPublicKey senderEphemeral) {
-    Pair<Chain,Integer> receiverChainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               receiverChain         = receiverChainAndIndex.first();
+    ReceiverChain receiverChain = getReceiverChain(senderEphemeral);
 
     if (receiverChain == null) {
       return null;
     } else {
-      return new ChainKey(HKDF.createFor(getSessionVersion()),
-                          receiverChain.getChainKey().getKey().toByteArray(),
-                          receiverChain.getChainKey().getIndex());
+      return receiverChain.getChainKey();
     }
   }
 
-  public void addReceiverChain(ECPublicKey senderRatchetKey, ChainKey chainKey) {
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
-
-    Chain chain = Chain.newBuilder()
-                       .setChainKey(chainKeyStructure)
-                       .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKey.getBytes()))
-                       .build();
+  public ReceiverChain addReceiverChain(ECPublicKey senderRatchetKey, ChainKey chainKey) {
+    ReceiverChain receiverChain = new ReceiverChain(senderRatchetKey, chainKey);
+    receiverChains.put(senderRatchetKey, receiverChain);
 
-    this.sessionStructure = this.sessionStructure.toBuilder().addReceiverChains(chain).build();
-
-    if (this.sessionStructure.getReceiverChainsList().size() > 5) {
-      this.sessionStructure = this.sessionStructure.toBuilder()
-                                                   .removeReceiverChains(0)
-                                                   .build();
-    }
+    return receiverChain;
   }
 
   public void setSenderChain(ECKeyPair senderRatchetKeyPair, ChainKey chainKey) {
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
-
-    Chain senderChain = Chain.newBuilder()
-                             .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKeyPair.getPublicKey().getBytes()))
-                             .setSenderRatchetKeyPrivate(ByteString.copyFrom(senderRatchetKeyPair.getPrivateKey().getBytes()))
-                             .setChainKey(chainKeyStructure)
-                             .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(senderChain).build();
+    this.senderChain = new SenderChain(senderRatchetKeyPair, chainKey);
   }
 
   public ChainKey getSenderChainKey() {
-    Chain.ChainKey chainKeyStructure = sessionStructure.getSenderChain().getChainKey();
-    return new ChainKey(HKDF.createFor(getSessionVersion()),
-                        chainKeyStructure.getKey().toByteArray(), chainKeyStructure.getIndex());
+    byte[] key   = senderChain != null ? senderChain.chainKey : EMPTY;
+    int    index = senderChain != null ? senderChain.index    : 0;
+
+    return new ChainKey(HKDF.createFor(getSessionVersion()), key, index);
   }
 
 
   public void setSenderChainKey(ChainKey nextChainKey) {
-    Chain.ChainKey chainKey = Chain.ChainKey.newBuilder()
-                                            .setKey(ByteString.copyFrom(nextChainKey.getKey()))
-                                            .setIndex(nextChainKey.getIndex())
-                                            .build();
-
-    Chain chain = sessionStructure.getSenderChain().toBuilder()
-                                  .setChainKey(chainKey).build();
+    if (senderChain == null) {
+      senderChain = new SenderChain();
+    }
 
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(chain).build();
+    senderChain.chainKey = nextChainKey.getKey();
+    senderChain.index    = nextChainKey.getIndex();
   }
 
   public boolean hasMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
-
-    if (chain == null) {
-      return false;
-    }
+    return getMessageKeys(senderEphemeral, counter) != null;
+  }
 
-    List<Chain.MessageKey> messageKeyList = chain.getMessageKeysList();
+  /**
+   * Returns the stored message keys for a skipped message without removing them.
+   *
+   * @param senderEphemeral The sender ratchet key of the chain.
+   * @param counter The message counter.
+   * @return the message keys, or null if none are stored.
+   */
+  public MessageKeys getMessageKeys(ECPublicKey senderEphemeral, int counter) {
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
-    for (Chain.MessageKey messageKey : messageKeyList) {
-      if (messageKey.getIndex() == counter) {
-        return true;
-      }
+    if (chain == null) {
+      return null;
     }
 
-    return false;
+    return chain.getMessageKeys(counter);
   }
 
   public MessageKeys removeMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
     if (chain == null) {
       return null;
     }
 
-    List<Chain.MessageKey>     messageKeyList     = new LinkedList<>(chain.getMessageKeysList());
-    Iterator<Chain.MessageKey> messageKeyIterator = messageKeyList.iterator();
-    MessageKeys                result             = null;
-
-    while (messageKeyIterator.hasNext()) {
-      Chain.MessageKey messageKey = messageKeyIterator.next();
-
-      if (messageKey.getIndex() == counter) {
-        result = new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
-                                 new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
-                                 new IvParameterSpec(messageKey.getIv().toByteArray()),
-                                 messageKey.getIndex());
-
-        messageKeyIterator.remove();
-        break;
-      }
-    }
-
-    Chain updatedChain = chain.toBuilder().clearMessageKeys()
-                              .addAllMessageKeys(messageKeyList)
-                              .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
-
-    return result;
+    return chain.removeMessageKeys(counter);
   }
 
   public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first();
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                              .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                              .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                              .setIndex(messageKeys.getCounter())
-                                                              .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
-                                                              .build();
-
-    Chain.Builder updatedChain = chain.toBuilder().addMessageKeys(messageKeyStructure);
-
-    if (updatedChain.getMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      updatedChain.removeMessageKeys(0);
-    }
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(),
-                                                                    updatedChain.build())
-                                                 .build();
+    getReceiverChain(senderEphemeral).setMessageKeys(messageKeys);
   }
 
   public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
-
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
-
-    Chain updatedChain = chain.toBuilder().setChainKey(chainKeyStructure).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
+    getReceiverChain(senderEphemeral).setChainKey(chainKey);
   }
 
   public void setPendingKeyExchange(int sequence,
@@ -344,7 +305,7 @@ public class SessionState {
                                     ECKeyPair ourRatchetKey,
                                     ECKeyPair ourIdentityKey)
   {
-    PendingKeyExchange structure =
+    this.pendingKeyExchange =
         PendingKeyExchange.newBuilder()
                           .setSequence(sequence)
                           .setLocalBaseKey(ByteString.copyFrom(ourBaseKey.getPublicKey().getBytes()))
@@ -354,100 +315,274 @@ public class SessionState {
                           .setLocalIdentityKey(ByteString.copyFrom(ourIdentityKey.getPublicKey().getBytes()))
                           .setLocalIdentityKeyPrivate(ByteString.copyFrom(ourIdentityKey.getPrivateKey().getBytes()))
                           .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingKeyExchange(structure)
-                                                 .build();
   }
 
   public int getPendingKeyExchangeSequence() {
-    return sessionStructure.getPendingKeyExchange().getSequence();
+    return getPendingKeyExchange().getSequence();
   }
 
   public ECKeyPair getPendingKeyExchangeBaseKey() throws InvalidKeyException {
-    ECPublicKey publicKey   = new ECPublicKey(sessionStructure.getPendingKeyExchange()
-                                                                .getLocalBaseKey().toByteArray());
-
-    ECPrivateKey privateKey = new ECPrivateKey(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalBaseKeyPrivate()
-                                                                       .toByteArray());
+    ECPublicKey  publicKey  = new ECPublicKey(getPendingKeyExchange().getLocalBaseKey().toByteArray());
+    ECPrivateKey privateKey = new ECPrivateKey(getPendingKeyExchange().getLocalBaseKeyPrivate().toByteArray());
 
     return new ECKeyPair(publicKey, privateKey);
   }
 
   public ECKeyPair getPendingKeyExchangeRatchetKey() throws InvalidKeyException {
-    ECPublicKey publicKey   = new ECPublicKey(sessionStructure.getPendingKeyExchange()
-                                                                .getLocalRatchetKey().toByteArray());
-
-    ECPrivateKey privateKey = new ECPrivateKey(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalRatchetKeyPrivate()
-                                                                       .toByteArray());
+    ECPublicKey  publicKey  = new ECPublicKey(getPendingKeyExchange().getLocalRatchetKey().toByteArray());
+    ECPrivateKey privateKey = new ECPrivateKey(getPendingKeyExchange().getLocalRatchetKeyPrivate().toByteArray());
 
     return new ECKeyPair(publicKey, privateKey);
   }
 
   public ECKeyPair getPendingKeyExchangeIdentityKey() throws InvalidKeyException {
-    ECPublicKey publicKey = new ECPublicKey(sessionStructure.getPendingKeyExchange()
-                                                            .getLocalIdentityKey().toByteArray());
-
-    ECPrivateKey privateKey = new ECPrivateKey(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalIdentityKeyPrivate()
-                                                                       .toByteArray());
+    ECPublicKey  publicKey  = new ECPublicKey(getPendingKeyExchange().getLocalIdentityKey().toByteArray());
+    ECPrivateKey privateKey = new ECPrivateKey(getPendingKeyExchange().getLocalIdentityKeyPrivate().toByteArray());
 
     return new ECKeyPair(publicKey, privateKey);
   }
 
   public boolean hasPendingKeyExchange() {
-    return sessionStructure.hasPendingKeyExchange();
+    return pendingKeyExchange != null;
+  }
+
+  private PendingKeyExchange getPendingKeyExchange() {
+    return pendingKeyExchange != null ? pendingKeyExchange : PendingKeyExchange.getDefaultInstance();
   }
 
   public void setUnacknowledgedPreKeyMessage(Optional<Integer> preKeyId, int signedPreKeyId, ECPublicKey baseKey) {
-    PendingPreKey.Builder pending = PendingPreKey.newBuilder()
-                                                 .setSignedPreKeyId(signedPreKeyId)
-                                                 .setBaseKey(ByteString.copyFrom(baseKey.getBytes()));
+    this.pendingPreKey = new UnacknowledgedPreKeyMessageItems(preKeyId, signedPreKeyId, baseKey);
+  }
 
-    if (preKeyId.isPresent()) {
-      pending.setPreKeyId(preKeyId.get());
+  public boolean hasUnacknowledgedPreKeyMessage() {
+    return pendingPreKey != null;
+  }
+
+  public UnacknowledgedPreKeyMessageItems getUnacknowledgedPreKeyMessageItems() {
+    if (pendingPreKey == null) {
+      throw new AssertionError("No unacknowledged PreKey message!");
     }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingPreKey(pending.build())
-                                                 .build();
+    return pendingPreKey;
   }
 
-  public boolean hasUnacknowledgedPreKeyMessage() {
-    return this.sessionStructure.hasPendingPreKey();
+  public void clearUnacknowledgedPreKeyMessage() {
+    this.pendingPreKey = null;
   }
 
-  public UnacknowledgedPreKeyMessageItems getUnacknowledgedPreKeyMessageItems() {
+  public byte[] serialize() {
+    return getStructure().toByteArray();
+  }
+
+  private static ECPublicKey decodePublicKey(boolean present, ByteString encoded) {
+    if (!present) {
+      return null;
+    }
+
+    try {
+      return new ECPublicKey(encoded.toByteArray());
+    } catch (InvalidKeyException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static UnacknowledgedPreKeyMessageItems decodePendingPreKey(PendingPreKey structure) {
     try {
       Optional<Integer> preKeyId;
 
-      if (sessionStructure.getPendingPreKey().hasPreKeyId()) {
-        preKeyId = Optional.of(sessionStructure.getPendingPreKey().getPreKeyId());
+      if (structure.hasPreKeyId()) {
+        preKeyId = Optional.of(structure.getPreKeyId());
       } else {
         preKeyId = Optional.absent();
       }
 
-      return
-          new UnacknowledgedPreKeyMessageItems(preKeyId,
-                                               sessionStructure.getPendingPreKey().getSignedPreKeyId(),
-                                               new ECPublicKey(sessionStructure.getPendingPreKey()
-                                                                                 .getBaseKey()
-                                                                                 .toByteArray()));
+      return new UnacknowledgedPreKeyMessageItems(preKeyId, structure.getSignedPreKeyId(),
+                                                  new ECPublicKey(structure.getBaseKey().toByteArray()));
     } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+      Log.w(TAG, e);
+      return null;
     }
   }
 
-  public void clearUnacknowledgedPreKeyMessage() {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .clearPendingPreKey()
-                                                 .build();
+  private static PendingPreKey encodePendingPreKey(UnacknowledgedPreKeyMessageItems items) {
+    PendingPreKey.Builder pending = PendingPreKey.newBuilder()
+                                                 .setSignedPreKeyId(items.getSignedPreKeyId())
+                                                 .setBaseKey(ByteString.copyFrom(items.getBaseKey().getBytes()));
+
+    if (items.getPreKeyId().isPresent()) {
+      pending.setPreKeyId(items.getPreKeyId().get());
+    }
+
+    return pending.build();
   }
 
-  public byte[] serialize() {
-    return sessionStructure.toByteArray();
+  private static Chain.ChainKey encodeChainKey(byte[] key, int index) {
+    return Chain.ChainKey.newBuilder()
+                         .setKey(ByteString.copyFrom(key))
+                         .setIndex(index)
+                         .build();
+  }
+
+  private static class SenderChain {
+    private ECPublicKey ratchetKey;
+    private byte[]      ratchetKeyPrivate;
+    private byte[]      chainKey;
+    private int         index;
+
+    private SenderChain() {
+      this.ratchetKeyPrivate = EMPTY;
+      this.chainKey          = EMPTY;
+    }
+
+    private SenderChain(ECKeyPair ratchetKeyPair, ChainKey chainKey) {
+      this.ratchetKey        = ratchetKeyPair.getPublicKey();
+      this.ratchetKeyPrivate = ratchetKeyPair.getPrivateKey().getBytes();
+      this.chainKey          = chainKey.getKey();
+      this.index             = chainKey.getIndex();
+    }
+
+    private SenderChain(SenderChain copy) {
+      this.ratchetKey        = copy.ratchetKey;
+      this.ratchetKeyPrivate = copy.ratchetKeyPrivate;
+      this.chainKey          = copy.chainKey;
+      this.index             = copy.index;
+    }
+
+    private SenderChain(Chain structure) {
+      this.ratchetKey        = decodePublicKey(structure.hasSenderRatchetKey(), structure.getSenderRatchetKey());
+      this.ratchetKeyPrivate = structure.getSenderRatchetKeyPrivate().toByteArray();
+      this.chainKey          = structure.getChainKey().getKey().toByteArray();
+      this.index             = structure.getChainKey().getIndex();
+    }
+
+    private Chain getStructure() {
+      Chain.Builder structure = Chain.newBuilder();
+
+      if (ratchetKey != null)              structure.setSenderRatchetKey(ByteString.copyFrom(ratchetKey.getBytes()));
+      if (ratchetKeyPrivate.length != 0)   structure.setSenderRatchetKeyPrivate(ByteString.copyFrom(ratchetKeyPrivate));
+
+      return structure.setChainKey(encodeChainKey(chainKey, index)).build();
+    }
+  }
+
+  /**
+   * A receiver chain, for messages sent on one of the remote party's ratchet keys.
+   */
+  public class ReceiverChain {
+    private final ECPublicKey       senderRatchetKey;
+    private final MessageKeysWindow messageKeys;
+
+    private byte[] chainKey;
+    private int    index;
+
+    private ReceiverChain(ECPublicKey senderRatchetKey, ChainKey chainKey) {
+      this.senderRatchetKey = senderRatchetKey;
+      this.chainKey         = chainKey.getKey();
+      this.index            = chainKey.getIndex();
+      this.messageKeys      = new MessageKeysWindow();
+    }
+
+    private ReceiverChain(ReceiverChain copy) {
+      this.senderRatchetKey = copy.senderRatchetKey;
+      this.chainKey         = copy.chainKey;
+      this.index            = copy.index;
+      this.messageKeys      = new MessageKeysWindow(copy.messageKeys);
+    }
+
+    private ReceiverChain(Chain structure) throws InvalidKeyException {
+      this.senderRatchetKey = new ECPublicKey(structure.getSenderRatchetKey().toByteArray());
+      this.chainKey         = structure.getChainKey().getKey().toByteArray();
+      this.index            = structure.getChainKey().getIndex();
+      this.messageKeys      = new MessageKeysWindow();
+
+      for (Chain.MessageKey messageKey : structure.getMessageKeysList()) {
+        this.messageKeys.put(messageKey.getIndex(),
+                             new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
+                                             new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
+                                             new IvParameterSpec(messageKey.getIv().toByteArray()),
+                                             messageKey.getIndex()));
+      }
+    }
+
+    private Chain getStructure() {
+      Chain.Builder structure = Chain.newBuilder()
+                                     .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKey.getBytes()))
+                                     .setChainKey(encodeChainKey(chainKey, index));
+
+      for (MessageKeys keys : messageKeys.values()) {
+        structure.addMessageKeys(Chain.MessageKey.newBuilder()
+                                                 .setCipherKey(ByteString.copyFrom(keys.getCipherKey().getEncoded()))
+                                                 .setMacKey(ByteString.copyFrom(keys.getMacKey().getEncoded()))
+                                                 .setIndex(keys.getCounter())
+                                                 .setIv(ByteString.copyFrom(keys.getIv().getIV())));
+      }
+
+      return structure.build();
+    }
+
+    public ECPublicKey getSenderRatchetKey() {
+      return senderRatchetKey;
+    }
+
+    public ChainKey getChainKey() {
+      return new ChainKey(HKDF.createFor(getSessionVersion()), chainKey, index);
+    }
+
+    public void setChainKey(ChainKey chainKey) {
+      this.chainKey = chainKey.getKey();
+      this.index    = chainKey.getIndex();
+    }
+
+    /**
+     * Returns the stored message keys for a skipped message without removing them.
+     *
+     * @param counter The message counter.
+     * @return the message keys, or null if none are stored.
+     */
+    public MessageKeys getMessageKeys(int counter) {
+      return messageKeys.get(counter);
+    }
+
+    public MessageKeys removeMessageKeys(int counter) {
+      return messageKeys.remove(counter);
+    }
+
+    public void setMessageKeys(MessageKeys keys) {
+      messageKeys.put(keys.getCounter(), keys);
+    }
+  }
+
+  /**
+   * Receiver chains keyed by sender ratchet key.  Iteration order is insertion order,
+   * and once more than {@link #MAX_RECEIVER_CHAINS} are held the oldest is evicted.
+   */
+  private static class ReceiverChains extends LinkedHashMap<ECPublicKey, ReceiverChain> {
+    private static final long serialVersionUID = 0;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ECPublicKey, ReceiverChain> eldest) {
+      return size() > MAX_RECEIVER_CHAINS;
+    }
+  }
+
+  /**
+   * Skipped message keys for a receiver chain, indexed by counter.  Iteration order is insertion
+   * order, and once more than {@link #MAX_MESSAGE_KEYS} are held the oldest is evicted.
+   */
+  private static class MessageKeysWindow extends LinkedHashMap<Integer, MessageKeys> {
+    private static final long serialVersionUID = 0;
+
+    private MessageKeysWindow() {}
+
+    private MessageKeysWindow(MessageKeysWindow copy) {
+      super(copy);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, MessageKeys> eldest) {
+      return size() > MAX_MESSAGE_KEYS;
+    }
   }
 
   public static class UnacknowledgedPreKeyMessageItems {
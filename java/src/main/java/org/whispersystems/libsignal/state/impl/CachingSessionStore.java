@@ -0,0 +1,284 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link SessionStore} that keeps recently used sessions in memory and writes
+ * them back to another store in the background.
+ * <p>
+ * Loads are served from an LRU cache of live {@link SessionRecord}s, and stores only
+ * mark a record dirty, so steady traffic with a session no longer parses and
+ * serializes the record on every message.  Dirty records are written to the backing
+ * store once enough of them have accumulated, periodically, or when {@link #flush()}
+ * or {@link #close()} is called.  Until then they are held in memory regardless of
+ * the cache size, so callers should flush at points where durability matters.
+ * <p>
+ * Deletes are written through to the backing store immediately.  As with any
+ * {@link SessionStore}, loads and stores return and keep copies, so records handed
+ * out by this store may be modified freely.  The cached copies are never modified,
+ * so they are copied again on load without holding the store's lock.
+ */
+public class CachingSessionStore implements SessionStore, Closeable {
+
+  private static final String TAG = CachingSessionStore.class.getSimpleName();
+
+  private final SessionStore             backingStore;
+  private final int                      maxDirtyEntries;
+  private final ScheduledExecutorService executor;
+  private final Lock                     writeLock = new ReentrantLock();
+
+  private final Map<SignalProtocolAddress, SessionRecord> cache;
+  private Map<SignalProtocolAddress, SessionRecord>       dirty    = new LinkedHashMap<>();
+  private Map<SignalProtocolAddress, SessionRecord>       flushing = Collections.emptyMap();
+
+  private long    generation;
+  private boolean flushScheduled;
+  private boolean closed;
+
+  /**
+   * @param backingStore The store that sessions are loaded from and written back to.
+   * @param maxEntries The maximum number of sessions to keep cached.
+   * @param maxDirtyEntries The number of dirty sessions that triggers a background flush.
+   * @param flushInterval The interval between periodic flushes, or 0 for none.
+   * @param unit The unit of flushInterval.
+   */
+  public CachingSessionStore(SessionStore backingStore, final int maxEntries,
+                             int maxDirtyEntries, long flushInterval, TimeUnit unit)
+  {
+    if (maxEntries <= 0 || maxDirtyEntries <= 0 || flushInterval < 0) {
+      throw new IllegalArgumentException("Bad cache parameters!");
+    }
+
+    this.backingStore    = backingStore;
+    this.maxDirtyEntries = maxDirtyEntries;
+    this.executor        = new ScheduledThreadPoolExecutor(1, new FlushThreadFactory());
+    this.cache           = new LinkedHashMap<SignalProtocolAddress, SessionRecord>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<SignalProtocolAddress, SessionRecord> eldest) {
+        return size() > maxEntries;
+      }
+    };
+
+    if (flushInterval > 0) {
+      executor.scheduleWithFixedDelay(new FlushTask(), flushInterval, flushInterval, unit);
+    }
+  }
+
+  @Override
+  public SessionRecord loadSession(SignalProtocolAddress address) {
+    while (true) {
+      SessionRecord cached;
+      long          loadGeneration;
+
+      synchronized (this) {
+        cached         = getCachedRecord(address);
+        loadGeneration = generation;
+      }
+
+      if (cached != null) {
+        return new SessionRecord(cached);
+      }
+
+      SessionRecord record = backingStore.loadSession(address);
+      SessionRecord copy   = record.isFresh() ? null : new SessionRecord(record, false);
+
+      synchronized (this) {
+        cached = getCachedRecord(address);
+
+        if (cached == null && loadGeneration == generation) {
+          if (copy != null) {
+            cache.put(address, copy);
+          }
+
+          return record;
+        }
+      }
+
+      if (cached != null) {
+        return new SessionRecord(cached);
+      }
+
+      // A flush or delete completed while loading, so the record may be stale.
+    }
+  }
+
+  @Override
+  public List<DeviceId> getSubDeviceSessions(String name) {
+    flush();
+    return backingStore.getSubDeviceSessions(name);
+  }
+
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    SessionRecord copy = new SessionRecord(record, false);
+
+    synchronized (this) {
+      cache.put(address, copy);
+      dirty.put(address, copy);
+
+      if (dirty.size() >= maxDirtyEntries && !flushScheduled && !closed) {
+        flushScheduled = true;
+        executor.execute(new FlushTask());
+      }
+    }
+  }
+
+  @Override
+  public boolean containsSession(SignalProtocolAddress address) {
+    synchronized (this) {
+      if (getCachedRecord(address) != null) {
+        return true;
+      }
+    }
+
+    return backingStore.containsSession(address);
+  }
+
+  @Override
+  public void deleteSession(SignalProtocolAddress address) {
+    writeLock.lock();
+
+    try {
+      synchronized (this) {
+        cache.remove(address);
+        dirty.remove(address);
+      }
+
+      backingStore.deleteSession(address);
+
+      synchronized (this) {
+        generation++;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    writeLock.lock();
+
+    try {
+      flushLocked();
+      backingStore.deleteAllSessions(name);
+
+      synchronized (this) {
+        cache.clear();
+        generation++;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes every dirty session to the backing store, returning once they have all
+   * been stored.
+   */
+  public void flush() {
+    writeLock.lock();
+
+    try {
+      flushLocked();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Flushes all dirty sessions and stops the background flush thread.  The store
+   * remains usable afterwards, but dirty sessions are then only written back by
+   * explicit calls to {@link #flush()}.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+
+    executor.shutdown();
+    flush();
+  }
+
+  private void flushLocked() {
+    Map<SignalProtocolAddress, SessionRecord> pending;
+
+    synchronized (this) {
+      if (dirty.isEmpty()) return;
+
+      pending  = dirty;
+      flushing = pending;
+      dirty    = new LinkedHashMap<>();
+    }
+
+    try {
+      for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : pending.entrySet()) {
+        backingStore.storeSession(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : pending.entrySet()) {
+          if (!dirty.containsKey(entry.getKey())) {
+            dirty.put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+
+      throw e;
+    } finally {
+      synchronized (this) {
+        flushing = Collections.emptyMap();
+        generation++;
+      }
+    }
+  }
+
+  private SessionRecord getCachedRecord(SignalProtocolAddress address) {
+    SessionRecord record = dirty.get(address);
+
+    if (record == null) record = flushing.get(address);
+    if (record == null) record = cache.get(address);
+
+    return record;
+  }
+
+  private class FlushTask implements Runnable {
+    @Override
+    public void run() {
+      synchronized (CachingSessionStore.this) {
+        flushScheduled = false;
+      }
+
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  private static class FlushThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "CachingSessionStore");
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -6,42 +6,164 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
-import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.util.PreKeyIdAllocator;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
-public class InMemoryPreKeyStore implements PreKeyStore {
+/**
+ * A thread safe {@link BulkPreKeyStore} that holds records in an open-addressed table
+ * keyed by primitive ID, and tracks the IDs in use with a {@link PreKeyIdAllocator} so
+ * that free ones can be handed out with {@link #allocatePreKeyId()}.
+ * <p>
+ * {@link PreKeyRecord} is immutable, so records are kept as they are stored and returned
+ * from {@link #loadPreKey(int)} without being copied or parsed.
+ */
+public class InMemoryPreKeyStore implements BulkPreKeyStore {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final PreKeyIdAllocator idAllocator = new PreKeyIdAllocator();
 
-  private final Map<Integer, byte[]> store = new HashMap<>();
+  private int[]          ids     = new int[INITIAL_CAPACITY];
+  private PreKeyRecord[] entries = new PreKeyRecord[INITIAL_CAPACITY];
+  private int            size;
 
   @Override
-  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    try {
-      if (!store.containsKey(preKeyId)) {
-        throw new InvalidKeyIdException("No such prekeyrecord!");
-      }
+  public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    int index = indexOf(preKeyId);
 
-      return new PreKeyRecord(store.get(preKeyId));
-    } catch (IOException e) {
-      throw new AssertionError(e);
+    if (index == -1) {
+      throw new InvalidKeyIdException("No such prekeyrecord!");
     }
+
+    return entries[index];
+  }
+
+  @Override
+  public synchronized void storePreKey(int preKeyId, PreKeyRecord record) {
+    ensureCapacity(size + 1);
+    put(preKeyId, record);
   }
 
   @Override
-  public void storePreKey(int preKeyId, PreKeyRecord record) {
-    store.put(preKeyId, record.serialize());
+  public synchronized void storePreKeys(List<PreKeyRecord> records) {
+    ensureCapacity(size + records.size());
+
+    for (PreKeyRecord record : records) {
+      put(record.getId(), record);
+    }
   }
 
   @Override
-  public boolean containsPreKey(int preKeyId) {
-    return store.containsKey(preKeyId);
+  public synchronized boolean containsPreKey(int preKeyId) {
+    return indexOf(preKeyId) != -1;
   }
 
   @Override
-  public void removePreKey(int preKeyId) {
-    store.remove(preKeyId);
+  public synchronized void removePreKey(int preKeyId) {
+    int index = indexOf(preKeyId);
+
+    if (index == -1) {
+      return;
+    }
+
+    int mask = ids.length - 1;
+    int next = index;
+
+    while (entries[next = (next + 1) & mask] != null) {
+      int home = hash(ids[next]) & mask;
+
+      if (index <= next ? (index < home && home <= next) : (index < home || home <= next)) {
+        continue;
+      }
+
+      ids[index]     = ids[next];
+      entries[index] = entries[next];
+      index          = next;
+    }
+
+    entries[index] = null;
+    size--;
+
+    idAllocator.release(preKeyId);
+  }
+
+  /**
+   * Reserve an ID that is not used by any stored pre-key, continuing on from the last one
+   * reserved.  The ID stays reserved until a pre-key stored with it is removed.
+   *
+   * @return the ID.
+   */
+  public int allocatePreKeyId() {
+    return idAllocator.allocate();
+  }
+
+  public synchronized int getPreKeyCount() {
+    return size;
+  }
+
+  private void put(int preKeyId, PreKeyRecord record) {
+    int mask  = ids.length - 1;
+    int index = hash(preKeyId) & mask;
+
+    while (entries[index] != null && ids[index] != preKeyId) {
+      index = (index + 1) & mask;
+    }
+
+    if (entries[index] == null) {
+      size++;
+    }
+
+    ids[index]     = preKeyId;
+    entries[index] = record;
+
+    idAllocator.markUsed(preKeyId);
+  }
+
+  private int indexOf(int preKeyId) {
+    int mask  = ids.length - 1;
+    int index = hash(preKeyId) & mask;
+
+    while (entries[index] != null) {
+      if (ids[index] == preKeyId) {
+        return index;
+      }
+
+      index = (index + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  private void ensureCapacity(int count) {
+    if (count * 2 <= ids.length) {
+      return;
+    }
+
+    int capacity = ids.length;
+
+    while (count * 2 > capacity) {
+      capacity *= 2;
+    }
+
+    int[]          oldIds     = ids;
+    PreKeyRecord[] oldEntries = entries;
+
+    ids     = new int[capacity];
+    entries = new PreKeyRecord[capacity];
+    size    = 0;
+
+    for (int i=0;i<oldIds.length;i++) {
+      if (oldEntries[i] != null) {
+        put(oldIds[i], oldEntries[i]);
+      }
+    }
+  }
+
+  private static int hash(int preKeyId) {
+    int hash = preKeyId * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
   }
 }
@@ -6,19 +6,31 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.BulkSessionStore;
 import org.whispersystems.libsignal.state.SessionRecord;
-import org.whispersystems.libsignal.state.SessionStore;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class InMemorySessionStore implements SessionStore {
+/**
+ * A {@link BulkSessionStore} that keeps serialized sessions in memory, along with an
+ * index from each identity key to the devices it has sessions with, so that per-identity
+ * lookups and deletes don't need to scan every session.
+ */
+public class InMemorySessionStore implements BulkSessionStore {
 
-  private Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
+  private final Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
+  private final Map<ECPublicKey, Set<DeviceId>>    devices  = new HashMap<>();
 
   public InMemorySessionStore() {}
 
@@ -35,23 +47,52 @@ public class InMemorySessionStore implements SessionStore {
     }
   }
 
+  @Override
+  public synchronized Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> records = new LinkedHashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, loadSession(address));
+    }
+
+    return records;
+  }
+
+  /**
+   * @param name The string form of the remote client's identity key, as used in
+   *             {@link SignalProtocolAddress#toString()}.
+   */
   @Override
   public synchronized List<DeviceId> getSubDeviceSessions(String name) {
-    List<DeviceId> deviceIds = new LinkedList<>();
+    ECPublicKey identityKey = parseIdentityKey(name);
 
-    for (SignalProtocolAddress key : sessions.keySet()) {
-      if (key.getIdentityKey().equals(name))
-      {
-        deviceIds.add(key.getDeviceId());
-      }
+    if (identityKey == null) {
+      return new ArrayList<>();
     }
 
-    return deviceIds;
+    return getSubDeviceSessions(identityKey);
+  }
+
+  public synchronized List<DeviceId> getSubDeviceSessions(ECPublicKey identityKey) {
+    Set<DeviceId> deviceIds = devices.get(identityKey);
+
+    if (deviceIds == null) {
+      return new ArrayList<>();
+    }
+
+    return new ArrayList<>(deviceIds);
   }
 
   @Override
   public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
-    sessions.put(address, record.serialize());
+    put(address, record.serialize());
+  }
+
+  @Override
+  public synchronized void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : records.entrySet()) {
+      put(entry.getKey(), entry.getValue().serialize());
+    }
   }
 
   @Override
@@ -61,15 +102,64 @@ public class InMemorySessionStore implements SessionStore {
 
   @Override
   public synchronized void deleteSession(SignalProtocolAddress address) {
-    sessions.remove(address);
+    if (sessions.remove(address) == null) {
+      return;
+    }
+
+    Set<DeviceId> deviceIds = devices.get(address.getIdentityKey());
+
+    deviceIds.remove(address.getDeviceId());
+
+    if (deviceIds.isEmpty()) {
+      devices.remove(address.getIdentityKey());
+    }
   }
 
+  /**
+   * @param name The string form of the remote client's identity key, as used in
+   *             {@link SignalProtocolAddress#toString()}.
+   */
   @Override
   public synchronized void deleteAllSessions(String name) {
-    for (SignalProtocolAddress key : sessions.keySet()) {
-      if (key.getIdentityKey().equals(name)) {
-        sessions.remove(key);
-      }
+    ECPublicKey identityKey = parseIdentityKey(name);
+
+    if (identityKey != null) {
+      deleteAllSessions(identityKey);
+    }
+  }
+
+  public synchronized void deleteAllSessions(ECPublicKey identityKey) {
+    Set<DeviceId> deviceIds = devices.remove(identityKey);
+
+    if (deviceIds == null) {
+      return;
+    }
+
+    for (DeviceId deviceId : deviceIds) {
+      sessions.remove(new SignalProtocolAddress(identityKey, deviceId));
+    }
+  }
+
+  private void put(SignalProtocolAddress address, byte[] serialized) {
+    if (sessions.put(address, serialized) != null) {
+      return;
+    }
+
+    Set<DeviceId> deviceIds = devices.get(address.getIdentityKey());
+
+    if (deviceIds == null) {
+      deviceIds = new LinkedHashSet<>();
+      devices.put(address.getIdentityKey(), deviceIds);
+    }
+
+    deviceIds.add(address.getDeviceId());
+  }
+
+  private static ECPublicKey parseIdentityKey(String name) {
+    try {
+      return new ECPublicKey(name);
+    } catch (InvalidKeyException e) {
+      return null;
     }
   }
 }
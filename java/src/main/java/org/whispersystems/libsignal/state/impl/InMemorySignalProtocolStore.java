@@ -9,14 +9,19 @@ import org.whispersystems.libsignal.DeviceId;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
+import org.whispersystems.libsignal.state.BulkSessionStore;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-public class InMemorySignalProtocolStore implements SignalProtocolStore {
+public class InMemorySignalProtocolStore implements SignalProtocolStore, BulkSessionStore, BulkPreKeyStore {
 
   private final InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
   private final InMemorySessionStore      sessionStore      = new InMemorySessionStore();
@@ -43,6 +48,11 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     preKeyStore.storePreKey(preKeyId, record);
   }
 
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    preKeyStore.storePreKeys(records);
+  }
+
   @Override
   public boolean containsPreKey(int preKeyId) {
     return preKeyStore.containsPreKey(preKeyId);
@@ -58,16 +68,30 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     return sessionStore.loadSession(address);
   }
 
+  @Override
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    return sessionStore.loadSessions(addresses);
+  }
+
   @Override
   public List<DeviceId> getSubDeviceSessions(String name) {
     return sessionStore.getSubDeviceSessions(name);
   }
 
+  public List<DeviceId> getSubDeviceSessions(ECPublicKey identityKey) {
+    return sessionStore.getSubDeviceSessions(identityKey);
+  }
+
   @Override
   public void storeSession(SignalProtocolAddress address, SessionRecord record) {
     sessionStore.storeSession(address, record);
   }
 
+  @Override
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    sessionStore.storeSessions(records);
+  }
+
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
     return sessionStore.containsSession(address);
@@ -83,6 +107,10 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     sessionStore.deleteAllSessions(name);
   }
 
+  public void deleteAllSessions(ECPublicKey identityKey) {
+    sessionStore.deleteAllSessions(identityKey);
+  }
+
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
     return signedPreKeyStore.loadSignedPreKey(signedPreKeyId);
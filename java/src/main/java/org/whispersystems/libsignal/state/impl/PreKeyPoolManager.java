@@ -0,0 +1,213 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link PreKeyStore} that keeps count of the one-time pre-keys left in another store,
+ * and tops them up in the background.
+ * <p>
+ * Pre-keys are counted as they are stored and removed through this store, which is how
+ * {@link org.whispersystems.libsignal.SessionCipher} consumes them.  Whenever the count
+ * falls below the low-water mark, a batch of new pre-keys is generated on the supplied
+ * {@link Executor} and stored, taking IDs from a circular allocator that wraps around
+ * modulo {@link Medium#MAX_VALUE} as {@link KeyHelper#generatePreKeys(int, int)} does.
+ * The {@link Listener} is then given the new records, so that their public keys can be
+ * uploaded.  At most one batch is generated at a time.
+ * <p>
+ * The count and the next ID are not persisted here.  Callers should save
+ * {@link #getNextPreKeyId()} alongside the store, and pass both back in on restart.
+ * Calls to the backing store are serialized, so it does not need to be thread safe.
+ */
+public class PreKeyPoolManager implements BulkPreKeyStore {
+
+  private static final String TAG = PreKeyPoolManager.class.getSimpleName();
+
+  private final PreKeyStore backingStore;
+  private final int         lowWaterMark;
+  private final int         batchSize;
+  private final Executor    executor;
+  private final Listener    listener;
+
+  private int     nextPreKeyId;
+  private int     available;
+  private boolean replenishing;
+
+  /**
+   * @param backingStore The store that holds the pre-keys.
+   * @param nextPreKeyId The ID to give the next generated pre-key.
+   * @param available The number of unused pre-keys currently in the backing store.
+   * @param lowWaterMark The count below which a new batch is generated.
+   * @param batchSize The number of pre-keys to generate in each batch.
+   * @param executor The executor to generate batches on.
+   * @param listener Told about each batch once it is stored, or null.
+   */
+  public PreKeyPoolManager(PreKeyStore backingStore, int nextPreKeyId, int available,
+                           int lowWaterMark, int batchSize, Executor executor, Listener listener)
+  {
+    if (nextPreKeyId < 1 || nextPreKeyId >= Medium.MAX_VALUE || available < 0 ||
+        lowWaterMark < 0 || batchSize <= 0)
+    {
+      throw new IllegalArgumentException("Bad pool parameters!");
+    }
+
+    this.backingStore = backingStore;
+    this.nextPreKeyId = nextPreKeyId;
+    this.available    = available;
+    this.lowWaterMark = lowWaterMark;
+    this.batchSize    = batchSize;
+    this.executor     = executor;
+    this.listener     = listener;
+  }
+
+  @Override
+  public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    return backingStore.loadPreKey(preKeyId);
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {
+    synchronized (this) {
+      if (!backingStore.containsPreKey(preKeyId)) {
+        available++;
+      }
+
+      backingStore.storePreKey(preKeyId, record);
+    }
+  }
+
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    synchronized (this) {
+      for (PreKeyRecord record : records) {
+        if (!backingStore.containsPreKey(record.getId())) {
+          available++;
+        }
+      }
+
+      if (backingStore instanceof BulkPreKeyStore) {
+        ((BulkPreKeyStore)backingStore).storePreKeys(records);
+      } else {
+        for (PreKeyRecord record : records) {
+          backingStore.storePreKey(record.getId(), record);
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean containsPreKey(int preKeyId) {
+    return backingStore.containsPreKey(preKeyId);
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    synchronized (this) {
+      if (backingStore.containsPreKey(preKeyId)) {
+        available--;
+      }
+
+      backingStore.removePreKey(preKeyId);
+    }
+
+    replenishIfNeeded();
+  }
+
+  /**
+   * Starts generating a batch if the pool is below the low-water mark and no batch is
+   * already being generated.  This happens automatically as pre-keys are removed, but
+   * may also be called at startup.  If the executor rejects the batch, nothing changes,
+   * and it is tried again on the next call.
+   */
+  public void replenishIfNeeded() {
+    final int start;
+
+    synchronized (this) {
+      if (replenishing || available >= lowWaterMark) {
+        return;
+      }
+
+      replenishing = true;
+      start        = nextPreKeyId;
+      nextPreKeyId = ((start - 1 + batchSize) % (Medium.MAX_VALUE - 1)) + 1;
+    }
+
+    try {
+      executor.execute(new ReplenishTask(start));
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, e);
+
+      synchronized (this) {
+        replenishing = false;
+        nextPreKeyId = start;
+      }
+    }
+  }
+
+  /**
+   * @return the number of unused pre-keys in the backing store.
+   */
+  public synchronized int getAvailableCount() {
+    return available;
+  }
+
+  /**
+   * @return the ID that the next generated pre-key will be given.
+   */
+  public synchronized int getNextPreKeyId() {
+    return nextPreKeyId;
+  }
+
+  public interface Listener {
+    /**
+     * Called on the executor after a batch of pre-keys has been stored.
+     *
+     * @param records The new pre-keys, whose public keys should be made available to
+     *                remote clients.
+     */
+    public void onPreKeysGenerated(List<PreKeyRecord> records);
+  }
+
+  private class ReplenishTask implements Runnable {
+    private final int start;
+
+    private ReplenishTask(int start) {
+      this.start = start;
+    }
+
+    @Override
+    public void run() {
+      boolean stored = false;
+
+      try {
+        List<PreKeyRecord> records = KeyHelper.generatePreKeys(start, batchSize);
+
+        storePreKeys(records);
+        stored = true;
+
+        if (listener != null) {
+          listener.onPreKeysGenerated(records);
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      } finally {
+        synchronized (PreKeyPoolManager.this) {
+          replenishing = false;
+        }
+      }
+
+      if (stored) {
+        replenishIfNeeded();
+      }
+    }
+  }
+}
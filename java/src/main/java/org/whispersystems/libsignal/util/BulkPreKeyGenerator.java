@@ -0,0 +1,135 @@
+package org.whispersystems.libsignal.util;
+
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Generates large numbers of one-time pre-keys in parallel and writes them to a
+ * {@link PreKeyStore} as they are finished.
+ * <p>
+ * The range is split into batches that are generated on the supplied {@link Executor},
+ * with a bounded number in flight at once.  Finished batches are stored on the calling
+ * thread, in order, so the store does not need to be thread safe.  If it is a
+ * {@link BulkPreKeyStore}, each batch is stored with a single call.  IDs are assigned
+ * exactly as {@link KeyHelper#generatePreKeys(int, int)} assigns them, wrapping around
+ * modulo {@link Medium#MAX_VALUE}.
+ */
+public class BulkPreKeyGenerator {
+
+  private final Executor executor;
+  private final int      batchSize;
+  private final int      maxBatchesInFlight;
+
+  /**
+   * @param executor The executor to generate keys on.
+   * @param batchSize The number of pre-keys generated by each task and stored together.
+   * @param maxBatchesInFlight The number of batches that may be generated or waiting to be
+   *                           stored at once.  This bounds memory use, and should be at
+   *                           least the executor's parallelism.
+   */
+  public BulkPreKeyGenerator(Executor executor, int batchSize, int maxBatchesInFlight) {
+    if (batchSize <= 0 || maxBatchesInFlight <= 0) {
+      throw new IllegalArgumentException("Bad batch parameters!");
+    }
+
+    this.executor           = executor;
+    this.batchSize          = batchSize;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+  }
+
+  /**
+   * Generate and store a range of pre-keys.
+   *
+   * @param preKeyStore The store to write the pre-keys to.
+   * @param start The starting PreKey ID, inclusive.
+   * @param count The number of PreKeys to generate.
+   * @param listener Told after each batch is stored, or null.
+   * @return the number of pre-keys stored, which is less than count only if the calling
+   *         thread was interrupted.  The interrupt status is preserved in that case.
+   *         If a batch or the store throws, batches that have not yet started are
+   *         cancelled before the exception is rethrown.
+   */
+  public int generate(PreKeyStore preKeyStore, int start, int count, ProgressListener listener) {
+    Queue<FutureTask<List<PreKeyRecord>>> pending   = new ArrayDeque<>();
+    int                                   submitted = 0;
+    int                                   stored    = 0;
+
+    try {
+      while (stored < count) {
+        while (submitted < count && pending.size() < maxBatchesInFlight) {
+          int batchCount = Math.min(batchSize, count - submitted);
+
+          pending.add(submit(start + submitted, batchCount));
+          submitted += batchCount;
+        }
+
+        List<PreKeyRecord> batch = getResult(pending.remove());
+
+        storePreKeys(preKeyStore, batch);
+        stored += batch.size();
+
+        if (listener != null) {
+          listener.onProgress(stored, count);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (FutureTask<List<PreKeyRecord>> task : pending) {
+        task.cancel(false);
+      }
+    }
+
+    return stored;
+  }
+
+  private FutureTask<List<PreKeyRecord>> submit(final int batchStart, final int batchCount) {
+    FutureTask<List<PreKeyRecord>> task = new FutureTask<>(new Callable<List<PreKeyRecord>>() {
+      @Override
+      public List<PreKeyRecord> call() {
+        return KeyHelper.generatePreKeys(batchStart, batchCount);
+      }
+    });
+
+    executor.execute(task);
+    return task;
+  }
+
+  private static List<PreKeyRecord> getResult(FutureTask<List<PreKeyRecord>> task) throws InterruptedException {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void storePreKeys(PreKeyStore preKeyStore, List<PreKeyRecord> records) {
+    if (preKeyStore instanceof BulkPreKeyStore) {
+      ((BulkPreKeyStore)preKeyStore).storePreKeys(records);
+      return;
+    }
+
+    for (PreKeyRecord record : records) {
+      preKeyStore.storePreKey(record.getId(), record);
+    }
+  }
+
+  public interface ProgressListener {
+    /**
+     * @param stored The number of pre-keys stored so far.
+     * @param total The number of pre-keys requested.
+     */
+    public void onProgress(int stored, int total);
+  }
+}
@@ -0,0 +1,129 @@
+package org.whispersystems.libsignal.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Hands out initialized {@link Mac} and {@link Cipher} instances that are reused by
+ * the calling thread, rather than looking up a provider for every operation.
+ * <p>
+ * Each call re-initializes and returns the calling thread's instance, so the result
+ * must not be shared with other threads, and must be used to completion before the
+ * same thread asks for another instance of the same kind.
+ */
+public class CryptoPrimitives {
+
+  private static final ThreadLocal<Mac> HMAC_SHA256 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<RawKey> HMAC_SHA256_KEY = new ThreadLocal<RawKey>() {
+    @Override
+    protected RawKey initialValue() {
+      return new RawKey("HmacSHA256");
+    }
+  };
+
+  private static final ThreadLocal<Cipher> AES_CBC = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  /**
+   * @param key The raw HMAC key.
+   * @return this thread's HmacSHA256 instance, initialized with the key.
+   */
+  public static Mac getHmacSha256(byte[] key) {
+    RawKey rawKey = HMAC_SHA256_KEY.get();
+
+    try {
+      rawKey.key = key;
+      return getHmacSha256(rawKey);
+    } finally {
+      rawKey.key = null;
+    }
+  }
+
+  /**
+   * @param key The HMAC key.
+   * @return this thread's HmacSHA256 instance, initialized with the key.
+   */
+  public static Mac getHmacSha256(Key key) {
+    try {
+      Mac mac = HMAC_SHA256.get();
+      mac.init(key);
+      return mac;
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @param key The AES key.
+   * @param iv The CBC initialization vector.
+   * @return this thread's AES/CBC/PKCS5Padding instance, initialized for the operation.
+   */
+  public static Cipher getAesCbcCipher(int mode, Key key, IvParameterSpec iv) {
+    try {
+      Cipher cipher = AES_CBC.get();
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * A reusable {@link SecretKey} over a caller's array, which saves wrapping each key in
+   * a {@link javax.crypto.spec.SecretKeySpec} just to initialize a {@link Mac}.  The
+   * provider still gets its own copy of the bytes from {@link #getEncoded()}.
+   */
+  private static class RawKey implements SecretKey {
+    private static final long serialVersionUID = 0;
+
+    private final String algorithm;
+
+    private transient byte[] key;
+
+    private RawKey(String algorithm) {
+      this.algorithm = algorithm;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return algorithm;
+    }
+
+    @Override
+    public String getFormat() {
+      return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return key.clone();
+    }
+  }
+}
@@ -12,9 +12,7 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,8 +22,31 @@ import java.util.List;
  */
 public class KeyHelper {
 
+  private static volatile RandomSource randomSource = new SecureRandomSource();
+
   private KeyHelper() {}
 
+  /**
+   * @return the source of the random identifiers and sender keys generated here.
+   */
+  public static RandomSource getRandomSource() {
+    return randomSource;
+  }
+
+  /**
+   * Replaces the source of the random identifiers and sender keys generated here.
+   * A {@link SeededRandomSource} makes them reproducible, for benchmarks and tests.
+   *
+   * @param randomSource The new source.
+   */
+  public static void setRandomSource(RandomSource randomSource) {
+    if (randomSource == null) {
+      throw new IllegalArgumentException("Random source must not be null");
+    }
+
+    KeyHelper.randomSource = randomSource;
+  }
+
   /**
    * Generate an identity key pair.  Clients should only do this once,
    * at install time.
@@ -39,11 +60,7 @@ public class KeyHelper {
   }
 
   public static int getRandomSequence(int max) {
-    try {
-      return SecureRandom.getInstance("SHA1PRNG").nextInt(max);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+    return randomSource.nextInt(max);
   }
 
   /**
@@ -53,13 +70,15 @@ public class KeyHelper {
    * PreKey IDs are shorts, so they will eventually be repeated.  Clients should
    * store PreKeys in a circular buffer, so that they are repeated as infrequently
    * as possible.
+   * <p>
+   * To generate thousands of PreKeys at once, see {@link BulkPreKeyGenerator}.
    *
    * @param start The starting PreKey ID, inclusive.
    * @param count The number of PreKeys to generate.
    * @return the list of generated PreKeyRecords.
    */
   public static List<PreKeyRecord> generatePreKeys(int start, int count) {
-    List<PreKeyRecord> results = new LinkedList<>();
+    List<PreKeyRecord> results = new ArrayList<>(count);
 
     start--;
 
@@ -94,22 +113,14 @@ public class KeyHelper {
   }
 
   public static byte[] generateSenderKey() {
-    try {
-      byte[] key = new byte[32];
-      SecureRandom.getInstance("SHA1PRNG").nextBytes(key);
+    byte[] key = new byte[32];
+    randomSource.nextBytes(key);
 
-      return key;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+    return key;
   }
 
   public static int generateSenderKeyId() {
-    try {
-      return SecureRandom.getInstance("SHA1PRNG").nextInt(Integer.MAX_VALUE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+    return randomSource.nextInt(Integer.MAX_VALUE);
   }
 
 }
@@ -0,0 +1,198 @@
+package org.whispersystems.libsignal.util;
+
+/**
+ * Tracks which pre-key IDs are in use, and hands out free ones.
+ * <p>
+ * IDs run from 1 to {@link Medium#MAX_VALUE} - 1, the range that
+ * {@link KeyHelper#generatePreKeys(int, int)} cycles through.  Allocation continues
+ * circularly from the last ID allocated, skipping any that are in use, so IDs are not
+ * reused sooner than they have to be.
+ * <p>
+ * Used IDs are kept in a bitmap of 4096-ID pages, which are only created once an ID in
+ * them is used, with a second bitmap recording which pages are full.  Finding the next
+ * free ID scans at most one page and the page bitmap, so it takes bounded time however
+ * full the range is.
+ */
+public class PreKeyIdAllocator {
+
+  private static final int PAGE_BITS  = 12;
+  private static final int PAGE_WORDS = (1 << PAGE_BITS) / 64;
+  private static final int PAGES      = (Medium.MAX_VALUE + 1) >>> PAGE_BITS;
+  private static final int CAPACITY   = Medium.MAX_VALUE - 1;
+
+  private final long[][] pages     = new long[PAGES][];
+  private final long[]   fullPages = new long[PAGES / 64];
+
+  private int next;
+  private int used;
+
+  /**
+   * @param start The ID to try first, in the range 1 to {@link Medium#MAX_VALUE} - 1.
+   */
+  public PreKeyIdAllocator(int start) {
+    if (!isValid(start)) {
+      throw new IllegalArgumentException("Bad pre-key ID: " + start);
+    }
+
+    this.next = start;
+  }
+
+  public PreKeyIdAllocator() {
+    this(1);
+  }
+
+  /**
+   * Reserve the next free ID.
+   *
+   * @return the ID, which stays in use until it is {@link #release(int) released}.
+   * @throws IllegalStateException if every ID is in use.
+   */
+  public synchronized int allocate() {
+    if (used == CAPACITY) {
+      throw new IllegalStateException("No free pre-key IDs!");
+    }
+
+    int id = findFree(next);
+
+    if (id == -1) {
+      id = findFree(1);
+    }
+
+    set(id);
+    next = id == CAPACITY ? 1 : id + 1;
+
+    return id;
+  }
+
+  /**
+   * Mark an ID as in use, for example one that was loaded from storage.  IDs outside of
+   * the allocator's range are ignored.
+   *
+   * @return true if the ID was free.
+   */
+  public synchronized boolean markUsed(int id) {
+    if (!isValid(id) || isSet(id)) {
+      return false;
+    }
+
+    set(id);
+    return true;
+  }
+
+  /**
+   * Return an ID to the free pool.
+   *
+   * @return true if the ID was in use.
+   */
+  public synchronized boolean release(int id) {
+    if (!isValid(id) || !isSet(id)) {
+      return false;
+    }
+
+    int page = id >>> PAGE_BITS;
+
+    pages[page][(id >>> 6) & (PAGE_WORDS - 1)] &= ~(1L << id);
+    fullPages[page >>> 6] &= ~(1L << page);
+    used--;
+
+    return true;
+  }
+
+  public synchronized boolean isUsed(int id) {
+    return isValid(id) && isSet(id);
+  }
+
+  public synchronized int getUsedCount() {
+    return used;
+  }
+
+  private boolean isSet(int id) {
+    long[] page = pages[id >>> PAGE_BITS];
+    return page != null && (page[(id >>> 6) & (PAGE_WORDS - 1)] & (1L << id)) != 0;
+  }
+
+  private void set(int id) {
+    int    pageIndex = id >>> PAGE_BITS;
+    long[] page      = pages[pageIndex];
+
+    if (page == null) {
+      page = pages[pageIndex] = new long[PAGE_WORDS];
+
+      if (pageIndex == 0)         page[0]              |= 1L;
+      if (pageIndex == PAGES - 1) page[PAGE_WORDS - 1] |= 1L << 63;
+    }
+
+    page[(id >>> 6) & (PAGE_WORDS - 1)] |= 1L << id;
+    used++;
+
+    for (long word : page) {
+      if (word != -1L) return;
+    }
+
+    fullPages[pageIndex >>> 6] |= 1L << pageIndex;
+  }
+
+  /**
+   * @return the lowest free ID at or above from, or -1 if there is none.
+   */
+  private int findFree(int from) {
+    int pageIndex = from >>> PAGE_BITS;
+    int id        = findFreeInPage(pageIndex, from);
+
+    if (id != -1) {
+      return id;
+    }
+
+    int nextPage = findNonFullPage(pageIndex + 1);
+
+    if (nextPage == -1) {
+      return -1;
+    }
+
+    return findFreeInPage(nextPage, nextPage << PAGE_BITS);
+  }
+
+  private int findFreeInPage(int pageIndex, int from) {
+    long[] page = pages[pageIndex];
+
+    if (page == null) {
+      return from == 0 ? 1 : from;
+    }
+
+    int  word = (from >>> 6) & (PAGE_WORDS - 1);
+    long free = ~page[word] & (-1L << from);
+
+    while (free == 0) {
+      if (++word == PAGE_WORDS) {
+        return -1;
+      }
+
+      free = ~page[word];
+    }
+
+    return (pageIndex << PAGE_BITS) | (word << 6) | Long.numberOfTrailingZeros(free);
+  }
+
+  private int findNonFullPage(int from) {
+    if (from >= PAGES) {
+      return -1;
+    }
+
+    int  word    = from >>> 6;
+    long nonFull = ~fullPages[word] & (-1L << from);
+
+    while (nonFull == 0) {
+      if (++word == fullPages.length) {
+        return -1;
+      }
+
+      nonFull = ~fullPages[word];
+    }
+
+    return (word << 6) | Long.numberOfTrailingZeros(nonFull);
+  }
+
+  private static boolean isValid(int id) {
+    return id >= 1 && id <= CAPACITY;
+  }
+}
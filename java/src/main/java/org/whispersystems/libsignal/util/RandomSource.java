@@ -0,0 +1,24 @@
+package org.whispersystems.libsignal.util;
+
+/**
+ * A source of random bytes for key material and identifiers.
+ * <p>
+ * Implementations must be safe to call from multiple threads.
+ *
+ * @see KeyHelper#setRandomSource(RandomSource)
+ */
+public interface RandomSource {
+
+  /**
+   * Fills an array with random bytes.
+   *
+   * @param bytes The array to fill.
+   */
+  void nextBytes(byte[] bytes);
+
+  /**
+   * @param bound The exclusive upper bound, which must be positive.
+   * @return a uniformly distributed value between 0 and bound.
+   */
+  int nextInt(int bound);
+}
@@ -0,0 +1,101 @@
+package org.whispersystems.libsignal.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The default {@link RandomSource}, which draws from a {@link SecureRandom} per thread.
+ * <p>
+ * Each thread's generator is created and seeded once, on first use, and is the
+ * platform's "DRBG" where there is one.  Small requests are served from a per-thread
+ * buffer that is refilled a block at a time, and bytes are cleared from the buffer as
+ * they are handed out.  Requests larger than the buffer go to the generator directly.
+ */
+public class SecureRandomSource implements RandomSource {
+
+  private static final int BUFFER_SIZE = 256;
+
+  private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer(createSecureRandom());
+    }
+  };
+
+  @Override
+  public void nextBytes(byte[] bytes) {
+    BUFFER.get().nextBytes(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public int nextInt(int bound) {
+    return boundedInt(this, bound);
+  }
+
+  /**
+   * Maps random bytes to a uniform value below a bound, rejecting the values that
+   * would make the lower results more likely, as {@link java.util.Random#nextInt(int)} does.
+   */
+  static int boundedInt(RandomSource source, int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("Bound must be positive: " + bound);
+    }
+
+    byte[] bytes = new byte[4];
+    int    bits;
+    int    value;
+
+    do {
+      source.nextBytes(bytes);
+      bits  = ByteUtil.byteArrayToInt(bytes, 0) >>> 1;
+      value = bits % bound;
+    } while (bits - value + (bound - 1) < 0);
+
+    return value;
+  }
+
+  private static SecureRandom createSecureRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  private static class Buffer {
+    private final SecureRandom random;
+    private final byte[]       bytes    = new byte[BUFFER_SIZE];
+    private int                position = BUFFER_SIZE;
+
+    private Buffer(SecureRandom random) {
+      this.random = random;
+    }
+
+    private void nextBytes(byte[] output, int offset, int length) {
+      if (length > BUFFER_SIZE) {
+        byte[] direct = new byte[length];
+        random.nextBytes(direct);
+        System.arraycopy(direct, 0, output, offset, length);
+        Arrays.fill(direct, (byte)0);
+        return;
+      }
+
+      while (length > 0) {
+        if (position == BUFFER_SIZE) {
+          random.nextBytes(bytes);
+          position = 0;
+        }
+
+        int count = Math.min(length, BUFFER_SIZE - position);
+
+        System.arraycopy(bytes, position, output, offset, count);
+        Arrays.fill(bytes, position, position + count, (byte)0);
+
+        position += count;
+        offset   += count;
+        length   -= count;
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package org.whispersystems.libsignal.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A deterministic {@link RandomSource}, for benchmarks and tests that need to be
+ * reproducible.  The same seed always produces the same sequence, on every platform.
+ * <p>
+ * The output is SHA-256 of the seed and a block counter.  Anyone who knows the seed can
+ * reproduce every key generated from it, so this must never be used for real keys.
+ */
+public class SeededRandomSource implements RandomSource {
+
+  private final MessageDigest digest;
+  private final byte[]        seed;
+  private final byte[]        block = new byte[32];
+
+  private long counter;
+  private int  position = block.length;
+
+  public SeededRandomSource(long seed) {
+    this(ByteUtil.longToByteArray(seed));
+  }
+
+  public SeededRandomSource(byte[] seed) {
+    try {
+      this.digest = MessageDigest.getInstance("SHA-256");
+      this.seed   = seed.clone();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized void nextBytes(byte[] bytes) {
+    int offset = 0;
+
+    while (offset < bytes.length) {
+      if (position == block.length) {
+        nextBlock();
+      }
+
+      int count = Math.min(bytes.length - offset, block.length - position);
+
+      System.arraycopy(block, position, bytes, offset, count);
+
+      position += count;
+      offset   += count;
+    }
+  }
+
+  @Override
+  public int nextInt(int bound) {
+    return SecureRandomSource.boundedInt(this, bound);
+  }
+
+  private void nextBlock() {
+    try {
+      digest.update(seed);
+      digest.update(ByteUtil.longToByteArray(counter++));
+      digest.digest(block, 0, block.length);
+
+      position = 0;
+    } catch (DigestException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.whispersystems.libsignal.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, selected by the hash of a key.
+ * <p>
+ * Equal keys always map to the same lock, so operations on a single key
+ * are strictly serialized, while operations on unrelated keys will
+ * usually land on different stripes and can proceed in parallel.  The
+ * number of stripes is fixed, so memory use does not grow with the number
+ * of distinct keys ever seen.
+ */
+public class StripedLock {
+
+  private final Lock[] stripes;
+  private final int    mask;
+
+  /**
+   * @param stripes The minimum number of stripes.  This is rounded up to a power of two.
+   */
+  public StripedLock(int stripes) {
+    if (stripes <= 0 || stripes > (1 << 30)) {
+      throw new IllegalArgumentException("Bad stripe count: " + stripes);
+    }
+
+    int size = Integer.highestOneBit(stripes);
+    if (size < stripes) size <<= 1;
+
+    this.stripes = new Lock[size];
+    this.mask    = size - 1;
+
+    for (int i=0;i<size;i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * @param key The key to lock.
+   * @return the lock guarding this key.
+   */
+  public Lock get(Object key) {
+    return stripes[indexFor(key)];
+  }
+
+  /**
+   * Returns the distinct locks guarding a set of keys, in a fixed global order.
+   * Callers that need to hold several keys at once must acquire the locks in the
+   * returned order, so that two such callers can never deadlock on each other.
+   *
+   * @param keys The keys to lock.
+   * @return the locks guarding those keys, without duplicates.
+   */
+  public List<Lock> getAll(Collection<?> keys) {
+    boolean[] selected = new boolean[stripes.length];
+
+    for (Object key : keys) {
+      selected[indexFor(key)] = true;
+    }
+
+    List<Lock> locks = new ArrayList<>();
+
+    for (int i=0;i<selected.length;i++) {
+      if (selected[i]) locks.add(stripes[i]);
+    }
+
+    return locks;
+  }
+
+  public int size() {
+    return stripes.length;
+  }
+
+  int indexFor(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+
+    return hash & mask;
+  }
+}
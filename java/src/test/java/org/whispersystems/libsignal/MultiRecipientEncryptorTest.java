@@ -0,0 +1,158 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.InMemorySessionStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MultiRecipientEncryptorTest extends TestCase {
+
+  public void testEncryptToManyAddresses() throws Exception {
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    List<Recipient>       recipients   = new ArrayList<>();
+
+    for (int i=0;i<20;i++) {
+      recipients.add(new Recipient(aliceStore, aliceAddress));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      MultiRecipientEncryptor encryptor = new MultiRecipientEncryptor(aliceStore, executor);
+
+      for (int round=0;round<3;round++) {
+        byte[]                         plaintext = ("round " + round).getBytes();
+        MultiRecipientEncryptor.Result result    = encryptor.encrypt(getAddresses(recipients), plaintext);
+
+        assertFalse(result.hasFailures());
+        assertEquals(recipients.size(), result.getMessages().size());
+
+        for (Recipient recipient : recipients) {
+          CiphertextMessage message = result.getMessages().get(recipient.address);
+          assertEquals(round, new SignalMessage(message.serialize()).getCounter());
+          assertEquals("round " + round, new String(recipient.cipher.decrypt(new SignalMessage(message.serialize()))));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Recipient         recipient = recipients.get(0);
+    CiphertextMessage single    = new SessionCipher(aliceStore, recipient.address).encrypt("single".getBytes());
+
+    assertEquals("single", new String(recipient.cipher.decrypt(new SignalMessage(single.serialize()))));
+  }
+
+  public void testFailuresAreReportedPerAddress() throws Exception {
+    SessionStore          aliceStore   = new InMemorySessionStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+    Recipient             recipient    = new Recipient(aliceStore, aliceAddress);
+    SignalProtocolAddress unknown      = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+
+    List<SignalProtocolAddress> addresses = new ArrayList<>();
+    addresses.add(unknown);
+    addresses.add(recipient.address);
+
+    MultiRecipientEncryptor.Result result = new MultiRecipientEncryptor(aliceStore).encrypt(addresses, "hello".getBytes());
+
+    assertTrue(result.getFailures().get(unknown) instanceof NoSessionException);
+    assertFalse(result.getMessages().containsKey(unknown));
+    assertFalse(aliceStore.containsSession(unknown));
+
+    CiphertextMessage message = result.getMessages().get(recipient.address);
+    assertEquals("hello", new String(recipient.cipher.decrypt(new SignalMessage(message.serialize()))));
+  }
+
+  public void testRejectedTasksRunOnCallingThread() throws Exception {
+    SessionStore          aliceStore   = new InMemorySessionStore();
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+    List<Recipient>       recipients   = new ArrayList<>();
+
+    for (int i=0;i<3;i++) {
+      recipients.add(new Recipient(aliceStore, aliceAddress));
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+
+    MultiRecipientEncryptor.Result result = new MultiRecipientEncryptor(aliceStore, executor).encrypt(getAddresses(recipients), "hello".getBytes());
+
+    assertFalse(result.hasFailures());
+
+    for (Recipient recipient : recipients) {
+      CiphertextMessage message = result.getMessages().get(recipient.address);
+      assertEquals("hello", new String(recipient.cipher.decrypt(new SignalMessage(message.serialize()))));
+    }
+  }
+
+  private static List<SignalProtocolAddress> getAddresses(List<Recipient> recipients) {
+    List<SignalProtocolAddress> addresses = new ArrayList<>();
+
+    for (Recipient recipient : recipients) {
+      addresses.add(recipient.address);
+    }
+
+    return addresses;
+  }
+
+  private static class Recipient {
+    private final SignalProtocolAddress address;
+    private final SessionCipher         cipher;
+
+    private Recipient(SessionStore aliceStore, SignalProtocolAddress aliceAddress) throws InvalidKeyException {
+      SignalProtocolStore bobStore = new TestInMemorySignalProtocolStore();
+
+      ECKeyPair aliceIdentityKey = Curve.generateKeyPair();
+      ECKeyPair aliceBaseKey     = Curve.generateKeyPair();
+      ECKeyPair bobIdentityKey   = bobStore.getIdentityKeyPair();
+      ECKeyPair bobBaseKey       = Curve.generateKeyPair();
+
+      AliceSignalProtocolParameters aliceParameters = AliceSignalProtocolParameters.newBuilder()
+                                                                                   .setOurBaseKey(aliceBaseKey)
+                                                                                   .setOurIdentityKey(aliceIdentityKey)
+                                                                                   .setTheirOneTimePreKey(Optional.<ECPublicKey>absent())
+                                                                                   .setTheirRatchetKey(bobBaseKey.getPublicKey())
+                                                                                   .setTheirSignedPreKey(bobBaseKey.getPublicKey())
+                                                                                   .setTheirIdentityKey(bobIdentityKey.getPublicKey())
+                                                                                   .create();
+
+      BobSignalProtocolParameters bobParameters = BobSignalProtocolParameters.newBuilder()
+                                                                             .setOurRatchetKey(bobBaseKey)
+                                                                             .setOurSignedPreKey(bobBaseKey)
+                                                                             .setOurOneTimePreKey(Optional.<ECKeyPair>absent())
+                                                                             .setOurIdentityKey(bobIdentityKey)
+                                                                             .setTheirIdentityKey(aliceIdentityKey.getPublicKey())
+                                                                             .setTheirBaseKey(aliceBaseKey.getPublicKey())
+                                                                             .create();
+
+      SessionRecord aliceSessionRecord = new SessionRecord();
+      SessionRecord bobSessionRecord   = new SessionRecord();
+
+      RatchetingSession.initializeSession(aliceSessionRecord.getSessionState(), aliceParameters);
+      RatchetingSession.initializeSession(bobSessionRecord.getSessionState(), bobParameters);
+
+      this.address = new SignalProtocolAddress(bobIdentityKey.getPublicKey(), DeviceId.random());
+      this.cipher  = new SessionCipher(bobStore, aliceAddress);
+
+      aliceStore.storeSession(address, aliceSessionRecord);
+      bobStore.storeSession(aliceAddress, bobSessionRecord);
+    }
+  }
+}
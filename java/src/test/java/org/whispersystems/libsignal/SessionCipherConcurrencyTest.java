@@ -0,0 +1,175 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SessionCipherConcurrencyTest extends TestCase {
+
+  public void testIndependentSessionsDoNotBlock() throws Exception {
+    final CountDownLatch blockedLoad = new CountDownLatch(1);
+    final CountDownLatch release     = new CountDownLatch(1);
+
+    final SignalProtocolAddress slowAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+    SignalProtocolAddress       fastAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+
+    while (SessionCipher.getSessionLock(fastAddress) == SessionCipher.getSessionLock(slowAddress)) {
+      fastAddress = new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+    }
+
+    final SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore() {
+      @Override
+      public SessionRecord loadSession(SignalProtocolAddress address) {
+        if (address.equals(slowAddress)) {
+          blockedLoad.countDown();
+
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+
+        return super.loadSession(address);
+      }
+    };
+
+    aliceStore.storeSession(slowAddress, createSessionPair().first);
+    aliceStore.storeSession(fastAddress, createSessionPair().first);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<CiphertextMessage> slow = executor.submit(new Callable<CiphertextMessage>() {
+        @Override
+        public CiphertextMessage call() {
+          return new SessionCipher(aliceStore, slowAddress).encrypt("slow".getBytes());
+        }
+      });
+
+      assertTrue(blockedLoad.await(10, TimeUnit.SECONDS));
+
+      CiphertextMessage fast = new SessionCipher(aliceStore, fastAddress).encrypt("fast".getBytes());
+      assertNotNull(fast);
+      assertFalse(slow.isDone());
+
+      release.countDown();
+      assertNotNull(slow.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  public void testSameSessionIsOrdered() throws Exception {
+    final SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    final SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    final SignalProtocolAddress bobAddress   = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    final SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+
+    SessionPair sessions = createSessionPair();
+    aliceStore.storeSession(bobAddress, sessions.first);
+    bobStore.storeSession(aliceAddress, sessions.second);
+
+    int             threads  = 8;
+    final int       messages = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    List<Future<List<CiphertextMessage>>> results = new ArrayList<>();
+
+    for (int i=0;i<threads;i++) {
+      results.add(executor.submit(new Callable<List<CiphertextMessage>>() {
+        @Override
+        public List<CiphertextMessage> call() {
+          SessionCipher           cipher      = new SessionCipher(aliceStore, bobAddress);
+          List<CiphertextMessage> ciphertexts = new ArrayList<>();
+
+          for (int j=0;j<messages;j++) {
+            ciphertexts.add(cipher.encrypt(("message " + j).getBytes()));
+          }
+
+          return ciphertexts;
+        }
+      }));
+    }
+
+    SessionCipher bobCipher = new SessionCipher(bobStore, aliceAddress);
+    Set<Integer>  counters  = new HashSet<>();
+
+    for (Future<List<CiphertextMessage>> result : results) {
+      for (CiphertextMessage ciphertext : result.get()) {
+        SignalMessage message = new SignalMessage(ciphertext.serialize());
+
+        assertTrue(counters.add(message.getCounter()));
+        assertTrue(new String(bobCipher.decrypt(message)).startsWith("message "));
+      }
+    }
+
+    assertEquals(threads * messages, counters.size());
+    executor.shutdown();
+  }
+
+  private static SessionPair createSessionPair() throws InvalidKeyException {
+    ECKeyPair aliceIdentityKey = Curve.generateKeyPair();
+    ECKeyPair aliceBaseKey     = Curve.generateKeyPair();
+    ECKeyPair bobIdentityKey   = Curve.generateKeyPair();
+    ECKeyPair bobBaseKey       = Curve.generateKeyPair();
+
+    AliceSignalProtocolParameters aliceParameters = AliceSignalProtocolParameters.newBuilder()
+                                                                                 .setOurBaseKey(aliceBaseKey)
+                                                                                 .setOurIdentityKey(aliceIdentityKey)
+                                                                                 .setTheirOneTimePreKey(Optional.<ECPublicKey>absent())
+                                                                                 .setTheirRatchetKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirSignedPreKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirIdentityKey(bobIdentityKey.getPublicKey())
+                                                                                 .create();
+
+    BobSignalProtocolParameters bobParameters = BobSignalProtocolParameters.newBuilder()
+                                                                           .setOurRatchetKey(bobBaseKey)
+                                                                           .setOurSignedPreKey(bobBaseKey)
+                                                                           .setOurOneTimePreKey(Optional.<ECKeyPair>absent())
+                                                                           .setOurIdentityKey(bobIdentityKey)
+                                                                           .setTheirIdentityKey(aliceIdentityKey.getPublicKey())
+                                                                           .setTheirBaseKey(aliceBaseKey.getPublicKey())
+                                                                           .create();
+
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    RatchetingSession.initializeSession(aliceSessionRecord.getSessionState(), aliceParameters);
+    RatchetingSession.initializeSession(bobSessionRecord.getSessionState(), bobParameters);
+
+    return new SessionPair(aliceSessionRecord, bobSessionRecord);
+  }
+
+  private static class SessionPair {
+    private final SessionRecord first;
+    private final SessionRecord second;
+
+    private SessionPair(SessionRecord first, SessionRecord second) {
+      this.first  = first;
+      this.second = second;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class SessionCipherTest extends TestCase {
@@ -72,6 +73,197 @@ public class SessionCipherTest extends TestCase {
     }
   }
 
+  public void testTamperedMessageDoesNotAdvanceSession() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    final SignalProtocolAddress bobAddress = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    final SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    CiphertextMessage skipped    = aliceCipher.encrypt("skipped".getBytes());
+    byte[]            serialized = aliceCipher.encrypt("tampered".getBytes()).serialize();
+    serialized[serialized.length - 1] ^= 0x01;
+
+    byte[] before = bobStore.loadSession(aliceAddress).serialize();
+
+    try {
+      bobCipher.decrypt(new SignalMessage(serialized));
+      throw new AssertionError("Should have failed!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    SessionRecord after = bobStore.loadSession(aliceAddress);
+
+    assertTrue(Arrays.equals(before, after.serialize()));
+    assertTrue(Arrays.equals(after.serialize(), new SessionRecord(after.serialize()).serialize()));
+    assertEquals("skipped", new String(bobCipher.decrypt(new SignalMessage(skipped.serialize()))));
+  }
+
+  public void testArchivedSessionIsRoutedByRatchetKey() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    final SignalProtocolAddress bobAddress = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    final SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("first".getBytes()).serialize()));
+
+    SignalMessage delayed      = new SignalMessage(aliceCipher.encrypt("delayed".getBytes()).serialize());
+    SessionRecord bobRecord    = bobStore.loadSession(aliceAddress);
+    SessionState  aliceSession = bobRecord.getSessionState();
+
+    for (int i=0;i<39;i++) {
+      SessionState otherState = new SessionState();
+      initializeSessionsV3(new SessionState(), otherState);
+      bobRecord.promoteState(otherState);
+    }
+
+    assertNull(bobRecord.getPreviousSessionState(Curve.generateKeyPair().getPublicKey()));
+    assertSame(aliceSession, bobRecord.getPreviousSessionState(delayed.getSenderRatchetKey()));
+    assertSame(aliceSession, bobRecord.getPreviousSessionStates().get(38));
+
+    bobStore.storeSession(aliceAddress, bobRecord);
+
+    assertEquals("delayed", new String(bobCipher.decrypt(delayed)));
+
+    bobRecord = bobStore.loadSession(aliceAddress);
+
+    assertTrue(bobRecord.getSessionState().hasReceiverChain(delayed.getSenderRatchetKey()));
+    assertNull(bobRecord.getPreviousSessionState(delayed.getSenderRatchetKey()));
+    assertEquals(39, bobRecord.getPreviousSessionStates().size());
+  }
+
+  public void testArchivedSessionsSurviveReserialization() throws Exception {
+    SessionRecord record = new SessionRecord();
+    initializeSessionsV3(new SessionState(), record.getSessionState());
+
+    for (int i=0;i<10;i++) {
+      SessionState otherState = new SessionState();
+      initializeSessionsV3(new SessionState(), otherState);
+      record.promoteState(otherState);
+    }
+
+    byte[]        serialized = record.serialize();
+    SessionRecord loaded     = new SessionRecord(serialized);
+    SessionState  archived   = record.getPreviousSessionStates().get(4);
+
+    assertTrue(Arrays.equals(serialized, loaded.serialize()));
+    assertTrue(loaded.hasSessionState(archived.getSessionVersion(), archived.getAliceBaseKey()));
+    assertFalse(loaded.hasSessionState(archived.getSessionVersion(), new byte[32]));
+
+    SessionState parsed = loaded.getPreviousSessionStates().get(4);
+
+    assertTrue(Arrays.equals(archived.serialize(), parsed.serialize()));
+    assertTrue(Arrays.equals(serialized, loaded.serialize()));
+
+    loaded.getPreviousSessionStates().remove(parsed);
+    record.getPreviousSessionStates().remove(4);
+
+    assertEquals(9, loaded.getPreviousSessionStates().size());
+    assertTrue(Arrays.equals(record.serialize(), loaded.serialize()));
+  }
+
+  public void testDecryptBatch() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final AtomicInteger bobStores = new AtomicInteger();
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore() {
+      @Override
+      public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        bobStores.incrementAndGet();
+        super.storeSession(address, record);
+      }
+    };
+
+    final SignalProtocolAddress bobAddress = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    final SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("first".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    List<SignalMessage> backlog = new ArrayList<>();
+
+    for (int i=0;i<50;i++) {
+      backlog.add(new SignalMessage(aliceCipher.encrypt(("message " + i).getBytes()).serialize()));
+    }
+
+    byte[] tampered = aliceCipher.encrypt("tampered".getBytes()).serialize();
+    tampered[tampered.length - 1] ^= 0x01;
+
+    Collections.shuffle(backlog, new Random(System.currentTimeMillis()));
+    backlog.add(new SignalMessage(tampered));
+    backlog.add(backlog.get(0));
+
+    final List<String> handled = new ArrayList<>();
+    bobStores.set(0);
+
+    List<SessionCipher.DecryptionResult> results = bobCipher.decryptBatch(backlog, new DecryptionCallback() {
+      @Override
+      public void handlePlaintext(byte[] plaintext) {
+        handled.add(new String(plaintext));
+      }
+    });
+
+    assertEquals(1, bobStores.get());
+    assertEquals(backlog.size(), results.size());
+    assertEquals(50, handled.size());
+
+    for (int i=0;i<50;i++) {
+      assertTrue(results.get(i).isSuccess());
+      assertEquals(backlog.get(i).getCounter(), Integer.parseInt(new String(results.get(i).getPlaintext()).substring(8)));
+    }
+
+    assertTrue(results.get(50).getException() instanceof InvalidMessageException);
+    assertTrue(results.get(51).getException() instanceof DuplicateMessageException);
+
+    for (int i=0;i<50;i++) {
+      assertEquals(i, Integer.parseInt(handled.get(i).substring(8)));
+    }
+
+    try {
+      bobCipher.decrypt(backlog.get(1));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+
+    assertEquals("next", new String(bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("next".getBytes()).serialize()))));
+  }
+
   private void runInteraction(SessionRecord aliceSessionRecord, SessionRecord bobSessionRecord)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException, NoSessionException {
     SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
@@ -0,0 +1,84 @@
+package org.whispersystems.libsignal.ecc;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CurveProviderTest extends TestCase {
+
+  public void testProvidersAreInterchangeable() throws Exception {
+    List<CurveProvider> providers = Curve.getAvailableProviders();
+    byte[]              message   = "smert ze smert".getBytes();
+
+    for (CurveProvider generator : providers) {
+      for (CurveProvider other : providers) {
+        for (int i=0;i<10;i++) {
+          ECKeyPair alice = generator.generateKeyPair();
+          ECKeyPair bob   = other.generateKeyPair();
+
+          byte[] aliceSecret = other.calculateAgreement(bob.getPublicKey().getBytes(), alice.getPrivateKey().getBytes());
+          byte[] bobSecret   = generator.calculateAgreement(alice.getPublicKey().getBytes(), bob.getPrivateKey().getBytes());
+
+          assertTrue(Arrays.equals(aliceSecret, bobSecret));
+
+          byte[] signature = generator.calculateSignature(alice.getPrivateKey().getBytes(), message);
+          assertTrue(other.verifySignature(alice.getPublicKey().getBytes(), message, signature));
+        }
+      }
+    }
+  }
+
+  public void testXdhMatchesCurve25519() throws Exception {
+    if (!XdhCurveProvider.isAvailable()) {
+      return;
+    }
+
+    CurveProvider curve25519 = new Curve25519CurveProvider();
+    CurveProvider xdh        = new XdhCurveProvider();
+
+    for (int i=0;i<10;i++) {
+      ECKeyPair ours   = curve25519.generateKeyPair();
+      ECKeyPair theirs = curve25519.generateKeyPair();
+
+      byte[] theirPublicKey = theirs.getPublicKey().getBytes();
+      byte[] ourPrivateKey  = ours.getPrivateKey().getBytes();
+
+      assertTrue(Arrays.equals(curve25519.calculateAgreement(theirPublicKey, ourPrivateKey),
+                               xdh.calculateAgreement(theirPublicKey, ourPrivateKey)));
+    }
+  }
+
+  public void testXdhRejectsLowOrderPoint() throws Exception {
+    if (!XdhCurveProvider.isAvailable()) {
+      return;
+    }
+
+    try {
+      new XdhCurveProvider().calculateAgreement(new byte[32], Curve.generateKeyPair().getPrivateKey().getBytes());
+      fail();
+    } catch (InvalidKeyException e) {
+      // good
+    }
+  }
+
+  public void testSelectFastestProvider() throws Exception {
+    CurveProvider original = Curve.getProvider();
+
+    try {
+      CurveProvider selected = Curve.selectFastestProvider();
+
+      assertSame(selected, Curve.getProvider());
+
+      ECKeyPair alice = Curve.generateKeyPair();
+      ECKeyPair bob   = Curve.generateKeyPair();
+
+      assertTrue(Arrays.equals(Curve.calculateAgreement(bob.getPublicKey(), alice.getPrivateKey()),
+                               Curve.calculateAgreement(alice.getPublicKey(), bob.getPrivateKey())));
+    } finally {
+      Curve.setProvider(original);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.whispersystems.libsignal.ecc;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class EphemeralKeyPoolTest extends TestCase {
+
+  public void testFillsToDepth() throws Exception {
+    EphemeralKeyPool pool = new EphemeralKeyPool(8);
+
+    try {
+      awaitSize(pool, 8);
+      Thread.sleep(50);
+      assertEquals(8, pool.size());
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testHitsAndMisses() throws Exception {
+    EphemeralKeyPool pool = new EphemeralKeyPool(4);
+    awaitSize(pool, 4);
+    pool.close();
+
+    Set<String> publicKeys = new HashSet<>();
+
+    for (int i=0;i<6;i++) {
+      ECKeyPair keyPair = pool.take();
+      ECKeyPair other   = Curve.generateKeyPair();
+
+      assertTrue(publicKeys.add(keyPair.getPublicKey().toString()));
+      assertTrue(Arrays.equals(Curve.calculateAgreement(other.getPublicKey(), keyPair.getPrivateKey()),
+                               Curve.calculateAgreement(keyPair.getPublicKey(), other.getPrivateKey())));
+    }
+
+    assertEquals(4, pool.getHits());
+    assertEquals(2, pool.getMisses());
+  }
+
+  public void testRatchetUsesInstalledPool() throws Exception {
+    EphemeralKeyPool pool = new EphemeralKeyPool(4);
+    awaitSize(pool, 4);
+
+    EphemeralKeyPool.install(pool);
+
+    try {
+      SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+      SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+      SignalProtocolAddress aliceAddress = new SignalProtocolAddress(aliceStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+      SignalProtocolAddress bobAddress   = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+
+      initializeSessions(aliceStore, aliceAddress, bobStore, bobAddress);
+
+      assertEquals(1, pool.getHits() + pool.getMisses());
+
+      SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+      SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+      for (int i=0;i<3;i++) {
+        SignalMessage toBob   = new SignalMessage(aliceCipher.encrypt("hey bob".getBytes()).serialize());
+        assertEquals("hey bob", new String(bobCipher.decrypt(toBob)));
+
+        SignalMessage toAlice = new SignalMessage(bobCipher.encrypt("hey alice".getBytes()).serialize());
+        assertEquals("hey alice", new String(aliceCipher.decrypt(toAlice)));
+      }
+
+      assertEquals(7, pool.getHits() + pool.getMisses());
+      assertTrue(pool.getHits() > 0);
+    } finally {
+      EphemeralKeyPool.install(null);
+      pool.close();
+    }
+  }
+
+  private static void initializeSessions(SignalProtocolStore aliceStore, SignalProtocolAddress aliceAddress,
+                                         SignalProtocolStore bobStore, SignalProtocolAddress bobAddress)
+      throws Exception
+  {
+    ECKeyPair aliceBaseKey = Curve.generateKeyPair();
+    ECKeyPair bobBaseKey   = Curve.generateKeyPair();
+
+    AliceSignalProtocolParameters aliceParameters = AliceSignalProtocolParameters.newBuilder()
+                                                                                 .setOurBaseKey(aliceBaseKey)
+                                                                                 .setOurIdentityKey(aliceStore.getIdentityKeyPair())
+                                                                                 .setTheirOneTimePreKey(Optional.<ECPublicKey>absent())
+                                                                                 .setTheirRatchetKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirSignedPreKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirIdentityKey(bobStore.getIdentityKeyPair().getPublicKey())
+                                                                                 .create();
+
+    BobSignalProtocolParameters bobParameters = BobSignalProtocolParameters.newBuilder()
+                                                                           .setOurRatchetKey(bobBaseKey)
+                                                                           .setOurSignedPreKey(bobBaseKey)
+                                                                           .setOurOneTimePreKey(Optional.<ECKeyPair>absent())
+                                                                           .setOurIdentityKey(bobStore.getIdentityKeyPair())
+                                                                           .setTheirIdentityKey(aliceStore.getIdentityKeyPair().getPublicKey())
+                                                                           .setTheirBaseKey(aliceBaseKey.getPublicKey())
+                                                                           .create();
+
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    RatchetingSession.initializeSession(aliceSessionRecord.getSessionState(), aliceParameters);
+    RatchetingSession.initializeSession(bobSessionRecord.getSessionState(), bobParameters);
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+  }
+
+  private static void awaitSize(EphemeralKeyPool pool, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+
+    while (pool.size() < size) {
+      assertTrue("Pool never filled", System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.whispersystems.libsignal.groups;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import org.whispersystems.libsignal.protocol.SenderKeyMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCipherConcurrencyTest extends TestCase {
+
+  public void testIndependentSenderKeysDoNotBlock() throws Exception {
+    final CountDownLatch blockedLoad = new CountDownLatch(1);
+    final CountDownLatch release     = new CountDownLatch(1);
+
+    final SenderKeyName slowName = createSenderKeyName("slow group");
+    SenderKeyName       fastName = createSenderKeyName("fast group");
+
+    while (GroupCipher.getSenderKeyLock(fastName) == GroupCipher.getSenderKeyLock(slowName)) {
+      fastName = createSenderKeyName("fast group");
+    }
+
+    final InMemorySenderKeyStore store = new InMemorySenderKeyStore() {
+      @Override
+      public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+        if (senderKeyName.equals(slowName) && blockedLoad.getCount() > 0) {
+          blockedLoad.countDown();
+
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+
+        return super.loadSenderKey(senderKeyName);
+      }
+    };
+
+    new GroupSessionBuilder(store).create(fastName);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<SenderKeyDistributionMessage> slow = executor.submit(new Callable<SenderKeyDistributionMessage>() {
+        @Override
+        public SenderKeyDistributionMessage call() {
+          return new GroupSessionBuilder(store).create(slowName);
+        }
+      });
+
+      assertTrue(blockedLoad.await(10, TimeUnit.SECONDS));
+
+      assertNotNull(new GroupCipher(store, fastName).encrypt("fast".getBytes()));
+      assertNotNull(new GroupSessionBuilder(store).create(fastName));
+      assertFalse(slow.isDone());
+
+      release.countDown();
+      assertNotNull(slow.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  public void testSameSenderIsOrdered() throws Exception {
+    final SenderKeyName          senderKeyName = createSenderKeyName("ordered group");
+    final InMemorySenderKeyStore senderStore   = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore       memberStore   = new InMemorySenderKeyStore();
+
+    SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(senderStore).create(senderKeyName);
+    new GroupSessionBuilder(memberStore).process(senderKeyName, new SenderKeyDistributionMessage(distributionMessage.serialize()));
+
+    int             threads  = 8;
+    final int       messages = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    List<Future<List<byte[]>>> results = new ArrayList<>();
+
+    for (int i=0;i<threads;i++) {
+      results.add(executor.submit(new Callable<List<byte[]>>() {
+        @Override
+        public List<byte[]> call() throws Exception {
+          GroupCipher  cipher      = new GroupCipher(senderStore, senderKeyName);
+          List<byte[]> ciphertexts = new ArrayList<>();
+
+          for (int j=0;j<messages;j++) {
+            ciphertexts.add(cipher.encrypt(("message " + j).getBytes()));
+          }
+
+          return ciphertexts;
+        }
+      }));
+    }
+
+    GroupCipher  memberCipher = new GroupCipher(memberStore, senderKeyName);
+    Set<Integer> iterations   = new HashSet<>();
+
+    for (Future<List<byte[]>> result : results) {
+      for (byte[] ciphertext : result.get()) {
+        assertTrue(iterations.add(new SenderKeyMessage(ciphertext).getIteration()));
+        assertTrue(new String(memberCipher.decrypt(ciphertext)).startsWith("message "));
+      }
+    }
+
+    assertEquals(threads * messages, iterations.size());
+    executor.shutdown();
+  }
+
+  private static SenderKeyName createSenderKeyName(String groupId) {
+    return new SenderKeyName(groupId, new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random()));
+  }
+}
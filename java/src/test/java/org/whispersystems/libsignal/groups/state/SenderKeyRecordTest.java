@@ -0,0 +1,65 @@
+package org.whispersystems.libsignal.groups.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+
+public class SenderKeyRecordTest extends TestCase {
+
+  public void testStatesAreIndexedAndEvicted() throws Exception {
+    SenderKeyRecord record = new SenderKeyRecord();
+
+    for (int i=1;i<=7;i++) {
+      record.addSenderKeyState(i, 0, new byte[32], Curve.generateKeyPair().getPublicKey());
+    }
+
+    assertEquals(7, record.getSenderKeyState().getKeyId());
+    assertMissing(record, 1);
+    assertMissing(record, 2);
+
+    for (int i=3;i<=7;i++) {
+      assertEquals(i, record.getSenderKeyState(i).getKeyId());
+    }
+
+    record.addSenderKeyState(3, 5, new byte[32], Curve.generateKeyPair().getPublicKey());
+    record.addSenderKeyState(8, 0, new byte[32], Curve.generateKeyPair().getPublicKey());
+
+    assertEquals(5, record.getSenderKeyState(3).getSenderChainKey().getIteration());
+    assertEquals(8, record.getSenderKeyState().getKeyId());
+    assertMissing(record, 4);
+
+    SenderKeyRecord parsed = new SenderKeyRecord(record.serialize());
+
+    assertEquals(8, parsed.getSenderKeyState().getKeyId());
+    assertEquals(5, parsed.getSenderKeyState(3).getSenderChainKey().getIteration());
+    assertMissing(parsed, 4);
+
+    parsed.addSenderKeyState(9, 0, new byte[32], Curve.generateKeyPair().getPublicKey());
+
+    assertMissing(parsed, 5);
+    assertEquals(3, parsed.getSenderKeyState(3).getKeyId());
+  }
+
+  public void testSigningKeyIsDecodedOnce() throws Exception {
+    ECPublicKey     signingKey = Curve.generateKeyPair().getPublicKey();
+    SenderKeyRecord record     = new SenderKeyRecord();
+
+    record.addSenderKeyState(1, 0, new byte[32], signingKey);
+
+    SenderKeyState state = new SenderKeyRecord(record.serialize()).getSenderKeyState(1);
+
+    assertEquals(signingKey, state.getSigningKeyPublic());
+    assertSame(state.getSigningKeyPublic(), state.getSigningKeyPublic());
+  }
+
+  private static void assertMissing(SenderKeyRecord record, int keyId) {
+    try {
+      record.getSenderKeyState(keyId);
+      fail("Key " + keyId + " should have been evicted!");
+    } catch (InvalidKeyIdException e) {
+      // good
+    }
+  }
+}
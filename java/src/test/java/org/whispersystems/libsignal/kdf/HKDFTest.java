@@ -2,8 +2,13 @@ package org.whispersystems.libsignal.kdf;
 
 import junit.framework.TestCase;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 public class HKDFTest extends TestCase {
 
   public void testVectorV3() {
@@ -134,4 +139,127 @@ public class HKDFTest extends TestCase {
     byte[] actualOutput = HKDF.createFor(2).deriveSecrets(ikm, salt, info, 64);
     assertTrue(Arrays.equals(okm, actualOutput));
   }
+
+  public void testCreateForIsShared() {
+    assertSame(HKDF.createFor(2), HKDF.createFor(2));
+    assertSame(HKDF.createFor(3), HKDF.createFor(3));
+    assertNotSame(HKDF.createFor(2), HKDF.createFor(3));
+  }
+
+  public void testMatchesReference() throws Exception {
+    byte[] ikm  = new byte[100];
+    byte[] salt = new byte[32];
+    byte[] info = new byte[100];
+
+    for (int i=0;i<ikm.length;i++) ikm[i] = (byte)(i * 7);
+    for (int i=0;i<salt.length;i++) salt[i] = (byte)(i * 13);
+    for (int i=0;i<info.length;i++) info[i] = (byte)(i * 31);
+
+    for (int version=2;version<=3;version++) {
+      for (int infoLength : new int[] {0, 1, 18, 31, 32, 33, 100}) {
+        for (int outputLength=0;outputLength<=130;outputLength++) {
+          byte[] infoBytes = infoLength == 0 ? null : Arrays.copyOf(info, infoLength);
+          byte[] expected  = reference(version == 2 ? 0 : 1, ikm, salt, infoBytes, outputLength);
+
+          assertTrue(Arrays.equals(expected, HKDF.createFor(version).deriveSecrets(ikm, salt, infoBytes, outputLength)));
+        }
+      }
+    }
+  }
+
+  public void testOutputBuffers() {
+    HKDF   kdf      = HKDF.createFor(3);
+    byte[] ikm      = "ikm".getBytes();
+    byte[] info     = "info".getBytes();
+    byte[] expected = kdf.deriveSecrets(ikm, info, 80);
+
+    byte[] array = new byte[100];
+    Arrays.fill(array, (byte)0x55);
+    kdf.deriveSecrets(ikm, info, array, 10, 80);
+
+    assertTrue(Arrays.equals(expected, Arrays.copyOfRange(array, 10, 90)));
+    assertEquals(0x55, array[9]);
+    assertEquals(0x55, array[90]);
+
+    for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100)}) {
+      buffer.position(5);
+      kdf.deriveSecrets(ikm, info, buffer, 80);
+      assertEquals(85, buffer.position());
+
+      byte[] written = new byte[80];
+      buffer.position(5);
+      buffer.get(written);
+      assertTrue(Arrays.equals(expected, written));
+    }
+
+    try {
+      kdf.deriveSecrets(ikm, info, new byte[79], 0, 80);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // good
+    }
+  }
+
+  public void testDeriveSecretsAllocationIsBounded() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long                            thread  = Thread.currentThread().getId();
+
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+      return;
+    }
+
+    HKDF   kdf    = HKDF.createFor(3);
+    byte[] ikm    = new byte[32];
+    byte[] salt   = new byte[32];
+    byte[] info   = "WhisperMessageKeys".getBytes();
+    byte[] output = new byte[80];
+
+    for (int i=0;i<10000;i++) {
+      kdf.deriveSecrets(ikm, salt, info, output, 0, output.length);
+    }
+
+    long before = threads.getThreadAllocatedBytes(thread);
+
+    for (int i=0;i<10000;i++) {
+      kdf.deriveSecrets(ikm, salt, info, output, 0, output.length);
+    }
+
+    long perCall = (threads.getThreadAllocatedBytes(thread) - before) / 10000;
+
+    // Mac.doFinal(byte[], int) allocates its result, and the provider copies each key:
+    // four blocks and two keys come to 288 bytes on OpenJDK.
+    assertTrue("Allocated " + perCall + " bytes per call", perCall <= 320);
+  }
+
+  private static byte[] reference(int startOffset, byte[] ikm, byte[] salt, byte[] info, int outputLength)
+      throws Exception
+  {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+    byte[] prk = mac.doFinal(ikm);
+
+    byte[] output  = new byte[outputLength];
+    byte[] mixin   = new byte[0];
+    int    written = 0;
+
+    mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+
+    for (int i=startOffset;written<outputLength;i++) {
+      mac.update(mixin);
+      if (info != null) mac.update(info);
+      mac.update((byte)i);
+
+      mixin = mac.doFinal();
+
+      int length = Math.min(mixin.length, outputLength - written);
+      System.arraycopy(mixin, 0, output, written, length);
+      written += length;
+    }
+
+    return output;
+  }
 }
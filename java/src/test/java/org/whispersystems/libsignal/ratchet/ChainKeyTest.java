@@ -2,8 +2,12 @@ package org.whispersystems.libsignal.ratchet;
 
 import junit.framework.TestCase;
 
+import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
+import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
 import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.util.Pair;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
@@ -105,4 +109,68 @@ public class ChainKeyTest extends TestCase {
         assertTrue(chainKey.getNextChainKey().getIndex() == 1);
         assertTrue(chainKey.getNextChainKey().getMessageKeys().getCounter() == 1);
     }
+
+  public void testCombinedStepMatchesSeparateDerivations() {
+    byte[] seed = new byte[32];
+    Arrays.fill(seed, (byte)0x2a);
+
+    ChainKey chainKey = new ChainKey(HKDF.createFor(3), seed, 7);
+
+    for (int i=0;i<3;i++) {
+      Pair<MessageKeys, ChainKey> step = chainKey.getMessageKeysAndNextChainKey();
+
+      assertTrue(Arrays.equals(chainKey.getMessageKeys().getCipherKey().getEncoded(), step.first().getCipherKey().getEncoded()));
+      assertTrue(Arrays.equals(chainKey.getMessageKeys().getMacKey().getEncoded(), step.first().getMacKey().getEncoded()));
+      assertTrue(Arrays.equals(chainKey.getMessageKeys().getIv().getIV(), step.first().getIv().getIV()));
+      assertTrue(Arrays.equals(chainKey.getNextChainKey().getKey(), step.second().getKey()));
+      assertEquals(7 + i, step.first().getCounter());
+      assertEquals(8 + i, step.second().getIndex());
+
+      chainKey = step.second();
+    }
+
+    SenderChainKey senderChainKey = new SenderChainKey(7, seed);
+
+    for (int i=0;i<3;i++) {
+      Pair<SenderMessageKey, SenderChainKey> step = senderChainKey.getSenderMessageKeyAndNext();
+
+      assertTrue(Arrays.equals(senderChainKey.getSenderMessageKey().getSeed(), step.first().getSeed()));
+      assertTrue(Arrays.equals(senderChainKey.getNext().getSeed(), step.second().getSeed()));
+      assertEquals(7 + i, step.first().getIteration());
+      assertEquals(8 + i, step.second().getIteration());
+
+      senderChainKey = step.second();
+    }
+  }
+
+  public void testSenderChainStepAllocationIsBounded() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long                            thread  = Thread.currentThread().getId();
+
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+      return;
+    }
+
+    SenderChainKey chainKey = new SenderChainKey(0, new byte[32]);
+
+    for (int i=0;i<10000;i++) {
+      chainKey = chainKey.getSenderMessageKeyAndNext().second();
+    }
+
+    long before = threads.getThreadAllocatedBytes(thread);
+
+    for (int i=0;i<10000;i++) {
+      chainKey = chainKey.getSenderMessageKeyAndNext().second();
+    }
+
+    long perStep = (threads.getThreadAllocatedBytes(thread) - before) / 10000;
+
+    // The two keys, their seeds and the pair come to 160 bytes on OpenJDK, and keying the
+    // HMAC once copies the chain key once more.  Keying it for each seed would exceed this.
+    assertTrue("Allocated " + perStep + " bytes per step", perStep <= 240);
+  }
 }
@@ -0,0 +1,199 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingSessionStoreTest extends TestCase {
+
+  public void testLoadsAreServedFromCache() {
+    CountingSessionStore  backingStore = new CountingSessionStore();
+    CachingSessionStore   store        = new CachingSessionStore(backingStore, 10, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress address      = createAddress();
+
+    backingStore.storeSession(address, createRecord(1));
+
+    for (int i=0;i<10;i++) {
+      assertEquals(1, store.loadSession(address).getSessionState().getPreviousCounter());
+    }
+
+    assertEquals(1, backingStore.loads.get());
+    store.close();
+  }
+
+  public void testStoresAreWrittenOnFlush() {
+    CountingSessionStore  backingStore = new CountingSessionStore();
+    CachingSessionStore   store        = new CachingSessionStore(backingStore, 10, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress address      = createAddress();
+
+    for (int i=1;i<=5;i++) {
+      store.storeSession(address, createRecord(i));
+    }
+
+    assertEquals(0, backingStore.stores.get());
+    assertTrue(store.containsSession(address));
+    assertFalse(backingStore.containsSession(address));
+    assertEquals(5, store.loadSession(address).getSessionState().getPreviousCounter());
+
+    store.flush();
+
+    assertEquals(1, backingStore.stores.get());
+    assertEquals(5, backingStore.loadSession(address).getSessionState().getPreviousCounter());
+    store.close();
+  }
+
+  public void testRecordsAreCopied() {
+    CachingSessionStore   store   = new CachingSessionStore(new CountingSessionStore(), 10, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress address = createAddress();
+    SessionRecord         record  = createRecord(1);
+
+    store.storeSession(address, record);
+    record.getSessionState().setPreviousCounter(2);
+    store.loadSession(address).getSessionState().setPreviousCounter(3);
+
+    assertEquals(1, store.loadSession(address).getSessionState().getPreviousCounter());
+    store.close();
+  }
+
+  public void testEvictedDirtySessionsAreKept() {
+    CountingSessionStore    backingStore = new CountingSessionStore();
+    CachingSessionStore     store        = new CachingSessionStore(backingStore, 2, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress[] addresses    = new SignalProtocolAddress[10];
+
+    for (int i=0;i<addresses.length;i++) {
+      addresses[i] = createAddress();
+      store.storeSession(addresses[i], createRecord(i + 1));
+    }
+
+    for (int i=0;i<addresses.length;i++) {
+      assertEquals(i + 1, store.loadSession(addresses[i]).getSessionState().getPreviousCounter());
+    }
+
+    assertEquals(0, backingStore.loads.get());
+
+    store.close();
+
+    for (int i=0;i<addresses.length;i++) {
+      assertEquals(i + 1, backingStore.loadSession(addresses[i]).getSessionState().getPreviousCounter());
+    }
+  }
+
+  public void testDeleteIsWrittenThrough() {
+    CountingSessionStore  backingStore = new CountingSessionStore();
+    CachingSessionStore   store        = new CachingSessionStore(backingStore, 10, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress address      = createAddress();
+
+    backingStore.storeSession(address, createRecord(1));
+    store.storeSession(address, createRecord(2));
+    store.deleteSession(address);
+    store.flush();
+
+    assertFalse(store.containsSession(address));
+    assertFalse(backingStore.containsSession(address));
+    assertTrue(store.loadSession(address).isFresh());
+    store.close();
+  }
+
+  public void testDirtyThresholdFlushesInBackground() throws Exception {
+    CountingSessionStore backingStore = new CountingSessionStore();
+    CachingSessionStore  store        = new CachingSessionStore(backingStore, 100, 10, 0, TimeUnit.SECONDS);
+
+    for (int i=0;i<10;i++) {
+      store.storeSession(createAddress(), createRecord(i + 1));
+    }
+
+    for (int i=0;i<100 && backingStore.stores.get() < 10;i++) {
+      Thread.sleep(50);
+    }
+
+    assertEquals(10, backingStore.stores.get());
+    store.close();
+  }
+
+  public void testIntervalFlush() throws Exception {
+    CountingSessionStore  backingStore = new CountingSessionStore();
+    CachingSessionStore   store        = new CachingSessionStore(backingStore, 10, 100, 20, TimeUnit.MILLISECONDS);
+    SignalProtocolAddress address      = createAddress();
+
+    store.storeSession(address, createRecord(1));
+
+    for (int i=0;i<100 && !backingStore.containsSession(address);i++) {
+      Thread.sleep(50);
+    }
+
+    assertTrue(Arrays.equals(createRecord(1).serialize(), backingStore.loadSession(address).serialize()));
+    store.close();
+  }
+
+  public void testStoredFreshRecordIsArchivedByNextSession() throws Exception {
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+    CachingSessionStore   store      = new CachingSessionStore(new InMemorySessionStore(), 10, 100, 0, TimeUnit.SECONDS);
+    SignalProtocolAddress bobAddress = new SignalProtocolAddress(bobStore.getIdentityKeyPair().getPublicKey(), DeviceId.random());
+    SessionBuilder        builder    = new SessionBuilder(store, aliceStore, aliceStore, aliceStore, bobAddress);
+
+    builder.process(createBundle(bobStore));
+
+    SessionRecord first = store.loadSession(bobAddress);
+
+    assertFalse(first.isFresh());
+
+    builder.process(createBundle(bobStore));
+
+    SessionRecord record = store.loadSession(bobAddress);
+
+    assertEquals(1, record.getPreviousSessionStates().size());
+    assertTrue(Arrays.equals(first.getSessionState().getAliceBaseKey(),
+                             record.getPreviousSessionStates().get(0).getAliceBaseKey()));
+    store.close();
+  }
+
+  private static PreKeyBundle createBundle(SignalProtocolStore store) throws Exception {
+    ECKeyPair preKeyPair       = Curve.generateKeyPair();
+    ECKeyPair signedPreKeyPair = Curve.generateKeyPair();
+    byte[]    signature        = Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(),
+                                                          signedPreKeyPair.getPublicKey().getBytes());
+
+    return new PreKeyBundle(1, preKeyPair.getPublicKey(), 2, signedPreKeyPair.getPublicKey(),
+                            signature, store.getIdentityKeyPair().getPublicKey());
+  }
+
+  private static SignalProtocolAddress createAddress() {
+    return new SignalProtocolAddress(Curve.generateKeyPair().getPublicKey(), DeviceId.random());
+  }
+
+  private static SessionRecord createRecord(int previousCounter) {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setPreviousCounter(previousCounter);
+    return record;
+  }
+
+  private static class CountingSessionStore extends InMemorySessionStore {
+    private final AtomicInteger loads  = new AtomicInteger();
+    private final AtomicInteger stores = new AtomicInteger();
+
+    @Override
+    public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+      loads.incrementAndGet();
+      return super.loadSession(address);
+    }
+
+    @Override
+    public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      stores.incrementAndGet();
+      super.storeSession(address, record);
+    }
+  }
+}
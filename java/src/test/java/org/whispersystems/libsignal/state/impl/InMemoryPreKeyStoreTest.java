@@ -0,0 +1,68 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class InMemoryPreKeyStoreTest extends TestCase {
+
+  public void testStoreLoadAndRemove() throws Exception {
+    InMemoryPreKeyStore store   = new InMemoryPreKeyStore();
+    List<PreKeyRecord>  records = KeyHelper.generatePreKeys(1, 500);
+
+    store.storePreKeys(records);
+    assertEquals(500, store.getPreKeyCount());
+
+    for (int i=0;i<records.size();i+=2) {
+      store.removePreKey(records.get(i).getId());
+    }
+
+    assertEquals(250, store.getPreKeyCount());
+
+    for (int i=0;i<records.size();i++) {
+      PreKeyRecord record = records.get(i);
+
+      if (i % 2 == 0) {
+        assertFalse(store.containsPreKey(record.getId()));
+
+        try {
+          store.loadPreKey(record.getId());
+          fail("Loaded a removed pre-key");
+        } catch (InvalidKeyIdException e) {
+          // good
+        }
+      } else {
+        PreKeyRecord loaded = store.loadPreKey(record.getId());
+
+        assertEquals(record.getId(), loaded.getId());
+        assertTrue(Arrays.equals(record.serialize(), loaded.serialize()));
+      }
+    }
+  }
+
+  public void testReplacesAndAllocatesFreeIds() throws Exception {
+    InMemoryPreKeyStore store   = new InMemoryPreKeyStore();
+    List<PreKeyRecord>  records = KeyHelper.generatePreKeys(1, 3);
+
+    store.storePreKey(2, records.get(0));
+    store.storePreKey(2, records.get(1));
+
+    assertEquals(1, store.getPreKeyCount());
+    assertTrue(Arrays.equals(records.get(1).getKeyPair().getPublicKey().getBytes(),
+                             store.loadPreKey(2).getKeyPair().getPublicKey().getBytes()));
+
+    assertEquals(1, store.allocatePreKeyId());
+    assertEquals(3, store.allocatePreKeyId());
+
+    store.removePreKey(2);
+    store.removePreKey(2);
+
+    assertEquals(0, store.getPreKeyCount());
+    assertEquals(4, store.allocatePreKeyId());
+  }
+}
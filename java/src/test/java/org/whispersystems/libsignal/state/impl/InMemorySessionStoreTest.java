@@ -0,0 +1,76 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DeviceId;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class InMemorySessionStoreTest extends TestCase {
+
+  public void testSubDeviceSessions() {
+    InMemorySessionStore store = new InMemorySessionStore();
+    ECPublicKey          alice = Curve.generateKeyPair().getPublicKey();
+    ECPublicKey          bob   = Curve.generateKeyPair().getPublicKey();
+    DeviceId             one   = DeviceId.random();
+    DeviceId             two   = DeviceId.random();
+
+    store.storeSession(new SignalProtocolAddress(alice, one), new SessionRecord());
+    store.storeSession(new SignalProtocolAddress(alice, one), new SessionRecord());
+
+    Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+    records.put(new SignalProtocolAddress(alice, two), new SessionRecord());
+    records.put(new SignalProtocolAddress(bob, one), new SessionRecord());
+    store.storeSessions(records);
+
+    List<DeviceId> aliceDevices = store.getSubDeviceSessions(alice);
+
+    assertEquals(2, aliceDevices.size());
+    assertEquals(new HashSet<>(Arrays.asList(one, two)), new HashSet<>(aliceDevices));
+    assertEquals(aliceDevices, store.getSubDeviceSessions(alice.toString()));
+    assertEquals(Arrays.asList(one), store.getSubDeviceSessions(bob));
+
+    store.deleteSession(new SignalProtocolAddress(alice, one));
+    store.deleteSession(new SignalProtocolAddress(alice, one));
+
+    assertEquals(Arrays.asList(two), store.getSubDeviceSessions(alice));
+    assertTrue(store.getSubDeviceSessions(Curve.generateKeyPair().getPublicKey()).isEmpty());
+    assertTrue(store.getSubDeviceSessions("not a key").isEmpty());
+  }
+
+  public void testDeleteAllSessions() {
+    InMemorySessionStore store = new InMemorySessionStore();
+    ECPublicKey          alice = Curve.generateKeyPair().getPublicKey();
+    ECPublicKey          bob   = Curve.generateKeyPair().getPublicKey();
+    DeviceId             one   = DeviceId.random();
+    DeviceId             two   = DeviceId.random();
+
+    store.storeSession(new SignalProtocolAddress(alice, one), new SessionRecord());
+    store.storeSession(new SignalProtocolAddress(alice, two), new SessionRecord());
+    store.storeSession(new SignalProtocolAddress(bob, one), new SessionRecord());
+
+    store.deleteAllSessions(alice.toString());
+
+    assertFalse(store.containsSession(new SignalProtocolAddress(alice, one)));
+    assertFalse(store.containsSession(new SignalProtocolAddress(alice, two)));
+    assertTrue(store.getSubDeviceSessions(alice).isEmpty());
+    assertTrue(store.containsSession(new SignalProtocolAddress(bob, one)));
+
+    store.deleteAllSessions(bob);
+    store.deleteAllSessions(bob);
+    store.deleteAllSessions("not a key");
+
+    assertFalse(store.containsSession(new SignalProtocolAddress(bob, one)));
+
+    store.storeSession(new SignalProtocolAddress(bob, two), new SessionRecord());
+    assertEquals(Arrays.asList(two), store.getSubDeviceSessions(bob));
+  }
+}
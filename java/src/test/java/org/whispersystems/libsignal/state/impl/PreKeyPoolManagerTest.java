@@ -0,0 +1,141 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PreKeyPoolManagerTest extends TestCase {
+
+  public void testReplenishesBelowLowWaterMark() {
+    InMemoryPreKeyStore      backingStore = new InMemoryPreKeyStore();
+    final List<PreKeyRecord> uploaded     = new ArrayList<>();
+
+    PreKeyPoolManager pool = new PreKeyPoolManager(backingStore, 1, 0, 3, 5, new InlineExecutor(), new PreKeyPoolManager.Listener() {
+      @Override
+      public void onPreKeysGenerated(List<PreKeyRecord> records) {
+        uploaded.addAll(records);
+      }
+    });
+
+    pool.replenishIfNeeded();
+
+    assertEquals(5, pool.getAvailableCount());
+    assertEquals(6, pool.getNextPreKeyId());
+    assertEquals(5, uploaded.size());
+
+    pool.removePreKey(1);
+    pool.removePreKey(2);
+    pool.removePreKey(2);
+
+    assertEquals(3, pool.getAvailableCount());
+    assertEquals(5, uploaded.size());
+
+    pool.removePreKey(3);
+
+    assertEquals(7, pool.getAvailableCount());
+    assertEquals(11, pool.getNextPreKeyId());
+    assertEquals(10, uploaded.size());
+
+    for (int i=6;i<=10;i++) {
+      assertTrue(backingStore.containsPreKey(i));
+      assertEquals(i, uploaded.get(i - 1).getId());
+    }
+  }
+
+  public void testIdsWrapAround() {
+    InMemoryPreKeyStore backingStore = new InMemoryPreKeyStore();
+    PreKeyPoolManager   pool         = new PreKeyPoolManager(backingStore, Medium.MAX_VALUE - 2, 0, 1, 4, new InlineExecutor(), null);
+
+    pool.replenishIfNeeded();
+
+    assertEquals(3, pool.getNextPreKeyId());
+    assertTrue(backingStore.containsPreKey(Medium.MAX_VALUE - 2));
+    assertTrue(backingStore.containsPreKey(Medium.MAX_VALUE - 1));
+    assertTrue(backingStore.containsPreKey(1));
+    assertTrue(backingStore.containsPreKey(2));
+    assertFalse(backingStore.containsPreKey(Medium.MAX_VALUE));
+
+    for (PreKeyRecord record : KeyHelper.generatePreKeys(Medium.MAX_VALUE - 2, 4)) {
+      assertTrue(backingStore.containsPreKey(record.getId()));
+    }
+  }
+
+  public void testReplenishesInBackground() throws Exception {
+    ExecutorService      executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch latch    = new CountDownLatch(1);
+
+    try {
+      InMemoryPreKeyStore backingStore = new InMemoryPreKeyStore();
+
+      for (PreKeyRecord record : KeyHelper.generatePreKeys(1, 2)) {
+        backingStore.storePreKey(record.getId(), record);
+      }
+
+      PreKeyPoolManager pool = new PreKeyPoolManager(backingStore, 3, 2, 2, 10, executor, new PreKeyPoolManager.Listener() {
+        @Override
+        public void onPreKeysGenerated(List<PreKeyRecord> records) {
+          assertEquals(10, records.size());
+          latch.countDown();
+        }
+      });
+
+      pool.removePreKey(1);
+
+      assertTrue(latch.await(30, TimeUnit.SECONDS));
+      assertEquals(11, pool.getAvailableCount());
+      assertTrue(pool.containsPreKey(12));
+      assertEquals(12, pool.loadPreKey(12).getId());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testRejectedBatchIsRetried() throws Exception {
+    InMemoryPreKeyStore backingStore = new InMemoryPreKeyStore();
+    RejectingExecutor   executor     = new RejectingExecutor();
+    PreKeyPoolManager   pool         = new PreKeyPoolManager(backingStore, 1, 0, 1, 5, executor, null);
+
+    pool.storePreKey(1, KeyHelper.generatePreKeys(1, 1).get(0));
+    pool.removePreKey(1);
+
+    assertEquals(0, pool.getAvailableCount());
+    assertEquals(1, pool.getNextPreKeyId());
+
+    executor.rejecting = false;
+    pool.replenishIfNeeded();
+
+    assertEquals(5, pool.getAvailableCount());
+    assertEquals(6, pool.getNextPreKeyId());
+  }
+
+  private static class RejectingExecutor implements Executor {
+    private boolean rejecting = true;
+
+    @Override
+    public void execute(Runnable command) {
+      if (rejecting) {
+        throw new RejectedExecutionException();
+      }
+
+      command.run();
+    }
+  }
+
+  private static class InlineExecutor implements Executor {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  }
+}
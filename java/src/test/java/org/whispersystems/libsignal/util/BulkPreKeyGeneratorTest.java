@@ -0,0 +1,164 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BulkPreKeyGeneratorTest extends TestCase {
+
+  public void testMatchesKeyHelperIds() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      CountingBulkStore   store    = new CountingBulkStore();
+      final List<Integer> progress = new ArrayList<>();
+      int                 start    = Medium.MAX_VALUE - 40;
+
+      int stored = new BulkPreKeyGenerator(executor, 7, 3).generate(store, start, 100, new BulkPreKeyGenerator.ProgressListener() {
+        @Override
+        public void onProgress(int stored, int total) {
+          assertEquals(100, total);
+          progress.add(stored);
+        }
+      });
+
+      assertEquals(100, stored);
+      assertEquals(15, store.batches);
+      assertEquals(15, progress.size());
+      assertEquals(100, (int)progress.get(progress.size() - 1));
+
+      for (int i=1;i<progress.size();i++) {
+        assertTrue(progress.get(i) > progress.get(i - 1));
+      }
+
+      List<PreKeyRecord> expected = KeyHelper.generatePreKeys(start, 100);
+
+      for (PreKeyRecord record : expected) {
+        assertTrue(store.containsPreKey(record.getId()));
+        assertEquals(record.getId(), store.loadPreKey(record.getId()).getId());
+      }
+
+      assertTrue(store.containsPreKey(1));
+      assertFalse(store.containsPreKey(0));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testPlainStoreAndInlineExecutor() throws Exception {
+    final Map<Integer, PreKeyRecord> records = new HashMap<>();
+
+    PreKeyStore store = new PreKeyStore() {
+      @Override
+      public PreKeyRecord loadPreKey(int preKeyId) {
+        return records.get(preKeyId);
+      }
+
+      @Override
+      public void storePreKey(int preKeyId, PreKeyRecord record) {
+        assertNull(records.put(preKeyId, record));
+      }
+
+      @Override
+      public boolean containsPreKey(int preKeyId) {
+        return records.containsKey(preKeyId);
+      }
+
+      @Override
+      public void removePreKey(int preKeyId) {
+        records.remove(preKeyId);
+      }
+    };
+
+    int stored = new BulkPreKeyGenerator(new InlineExecutor(), 10, 1).generate(store, 1, 25, null);
+
+    assertEquals(25, stored);
+    assertEquals(25, records.size());
+
+    for (int i=1;i<=25;i++) {
+      assertEquals(i, records.get(i).getId());
+    }
+  }
+
+  public void testInterruptStopsGeneration() {
+    InMemoryPreKeyStore store = new InMemoryPreKeyStore();
+
+    Thread.currentThread().interrupt();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      int stored = new BulkPreKeyGenerator(executor, 10, 2).generate(store, 1, 1000, null);
+
+      assertTrue(Thread.interrupted());
+      assertTrue(stored < 1000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testFailedStoreCancelsPendingBatches() {
+    final List<Runnable> queued = new ArrayList<>();
+
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (queued.isEmpty()) command.run();
+        queued.add(command);
+      }
+    };
+
+    InMemoryPreKeyStore store = new InMemoryPreKeyStore() {
+      @Override
+      public void storePreKeys(List<PreKeyRecord> records) {
+        throw new IllegalStateException("Store failed");
+      }
+    };
+
+    try {
+      new BulkPreKeyGenerator(executor, 10, 3).generate(store, 1, 100, null);
+      fail("Should have thrown");
+    } catch (IllegalStateException e) {
+      // good
+    }
+
+    assertEquals(3, queued.size());
+
+    for (Runnable task : queued.subList(1, queued.size())) {
+      assertTrue(((Future<?>)task).isCancelled());
+    }
+  }
+
+  private static class CountingBulkStore extends InMemoryPreKeyStore {
+    private int batches;
+
+    @Override
+    public void storePreKeys(List<PreKeyRecord> records) {
+      batches++;
+      super.storePreKeys(records);
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+      fail("Should store in batches");
+    }
+  }
+
+  private static class InlineExecutor implements Executor {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  }
+}
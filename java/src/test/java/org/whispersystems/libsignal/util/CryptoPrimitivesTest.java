@@ -0,0 +1,67 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoPrimitivesTest extends TestCase {
+
+  public void testHmacMatchesFreshInstance() throws Exception {
+    byte[] message = "smert ze smert".getBytes();
+
+    for (int i=0;i<3;i++) {
+      byte[] key = new byte[32];
+      Arrays.fill(key, (byte)i);
+
+      Mac expected = Mac.getInstance("HmacSHA256");
+      expected.init(new SecretKeySpec(key, "HmacSHA256"));
+
+      Mac mac = CryptoPrimitives.getHmacSha256(key);
+      mac.update((byte)0x01);
+
+      assertTrue(Arrays.equals(expected.doFinal(message), CryptoPrimitives.getHmacSha256(key).doFinal(message)));
+    }
+  }
+
+  public void testCipherIsUsableAfterFailure() throws Exception {
+    SecretKeySpec   key       = new SecretKeySpec(new byte[32], "AES");
+    IvParameterSpec iv        = new IvParameterSpec(new byte[16]);
+    byte[]          plaintext = "up the punks".getBytes();
+
+    byte[] ciphertext = CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, key, iv).doFinal(plaintext);
+
+    try {
+      CryptoPrimitives.getAesCbcCipher(Cipher.DECRYPT_MODE, new SecretKeySpec(new byte[16], "AES"), iv).doFinal(ciphertext);
+      fail("Should have failed with the wrong key!");
+    } catch (BadPaddingException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals(plaintext, CryptoPrimitives.getAesCbcCipher(Cipher.DECRYPT_MODE, key, iv).doFinal(ciphertext)));
+  }
+
+  public void testInstancesAreThreadConfined() throws Exception {
+    final byte[]               key   = new byte[32];
+    final AtomicReference<Mac> other = new AtomicReference<>();
+
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other.set(CryptoPrimitives.getHmacSha256(key));
+      }
+    };
+
+    thread.start();
+    thread.join();
+
+    assertSame(CryptoPrimitives.getHmacSha256(key), CryptoPrimitives.getHmacSha256(key));
+    assertNotSame(other.get(), CryptoPrimitives.getHmacSha256(key));
+  }
+}
@@ -0,0 +1,63 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+public class PreKeyIdAllocatorTest extends TestCase {
+
+  public void testAllocatesSequentiallyAndSkipsUsed() {
+    PreKeyIdAllocator allocator = new PreKeyIdAllocator();
+
+    assertTrue(allocator.markUsed(2));
+    assertFalse(allocator.markUsed(2));
+    assertFalse(allocator.markUsed(0));
+    assertFalse(allocator.markUsed(Medium.MAX_VALUE));
+
+    assertEquals(1, allocator.allocate());
+    assertEquals(3, allocator.allocate());
+    assertEquals(3, allocator.getUsedCount());
+
+    assertTrue(allocator.release(1));
+    assertFalse(allocator.release(1));
+    assertFalse(allocator.isUsed(1));
+
+    assertEquals(4, allocator.allocate());
+  }
+
+  public void testWrapsAround() {
+    PreKeyIdAllocator allocator = new PreKeyIdAllocator(Medium.MAX_VALUE - 2);
+
+    assertEquals(Medium.MAX_VALUE - 2, allocator.allocate());
+    assertEquals(Medium.MAX_VALUE - 1, allocator.allocate());
+    assertEquals(1, allocator.allocate());
+  }
+
+  public void testSkipsFullPages() {
+    PreKeyIdAllocator allocator = new PreKeyIdAllocator(5000);
+
+    for (int i=1;i<20000;i++) {
+      allocator.markUsed(i);
+    }
+
+    allocator.release(4000);
+
+    assertEquals(20000, allocator.allocate());
+    assertEquals(20001, allocator.allocate());
+
+    for (int i=20002;i<Medium.MAX_VALUE;i++) {
+      allocator.markUsed(i);
+    }
+
+    assertEquals(4000, allocator.allocate());
+    assertEquals(Medium.MAX_VALUE - 1, allocator.getUsedCount());
+
+    try {
+      allocator.allocate();
+      fail("Allocated from a full range");
+    } catch (IllegalStateException e) {
+      // good
+    }
+
+    allocator.release(12345);
+    assertEquals(12345, allocator.allocate());
+  }
+}
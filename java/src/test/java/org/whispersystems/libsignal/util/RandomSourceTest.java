@@ -0,0 +1,82 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RandomSourceTest extends TestCase {
+
+  public void testSeededIsReproducible() {
+    RandomSource first  = new SeededRandomSource(1234);
+    RandomSource second = new SeededRandomSource(1234);
+    RandomSource other  = new SeededRandomSource(1235);
+
+    for (int length : new int[] {1, 7, 32, 33, 100, 1000}) {
+      byte[] expected = new byte[length];
+      byte[] actual   = new byte[length];
+      byte[] distinct = new byte[length];
+
+      first.nextBytes(expected);
+      second.nextBytes(actual);
+      other.nextBytes(distinct);
+
+      assertTrue(Arrays.equals(expected, actual));
+      assertFalse(length > 4 && Arrays.equals(expected, distinct));
+      assertEquals(first.nextInt(1000), second.nextInt(1000));
+    }
+  }
+
+  public void testBounds() {
+    for (RandomSource source : new RandomSource[] {new SecureRandomSource(), new SeededRandomSource(42)}) {
+      Set<Integer> seen = new HashSet<>();
+
+      for (int i=0;i<1000;i++) {
+        int value = source.nextInt(10);
+
+        assertTrue(value >= 0 && value < 10);
+        seen.add(value);
+      }
+
+      assertEquals(10, seen.size());
+      assertEquals(0, source.nextInt(1));
+
+      try {
+        source.nextInt(0);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // good
+      }
+    }
+  }
+
+  public void testSecureSourceAcrossBuffer() {
+    RandomSource source = new SecureRandomSource();
+    Set<String>  seen   = new HashSet<>();
+
+    for (int length : new int[] {32, 32, 200, 255, 256, 257, 4096}) {
+      byte[] bytes = new byte[length];
+      source.nextBytes(bytes);
+
+      assertTrue(seen.add(Hex.toString(bytes)));
+      assertFalse(Arrays.equals(new byte[length], bytes));
+    }
+  }
+
+  public void testKeyHelperUsesRandomSource() {
+    RandomSource original = KeyHelper.getRandomSource();
+
+    try {
+      KeyHelper.setRandomSource(new SeededRandomSource(7));
+      int    keyId = KeyHelper.generateSenderKeyId();
+      byte[] key   = KeyHelper.generateSenderKey();
+
+      KeyHelper.setRandomSource(new SeededRandomSource(7));
+      assertEquals(keyId, KeyHelper.generateSenderKeyId());
+      assertTrue(Arrays.equals(key, KeyHelper.generateSenderKey()));
+    } finally {
+      KeyHelper.setRandomSource(original);
+    }
+  }
+}